@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the startup cost of each bundled encoding: the time to load its vocabulary, to
+ * build the first tokenizer and to get the first token, along with the bytes allocated while
+ * doing so, and the heap retained afterwards.
+ * <p>
+ * Run by the {@code benchmark} task of the Gradle build, optionally with encoding names as
+ * arguments. Each encoding is measured in a separate, freshly started JVM, repeated a given
+ * number of times ({@code -Dbenchmark.forks}, 3 by default), so that every measurement starts
+ * cold and the encodings don't share loaded classes or resources. The retained heap is the
+ * difference in used heap after full garbage collections, with and without the tokenizer
+ * reachable, while the vocabulary footprint is the size of its arrays as estimated by
+ * {@link Vocabulary#memoryFootprint()}.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class StartupBenchmark {
+
+    private static final String FORKED_OPTION = "--forked";
+    private static final String FIRST_TEXT = "Hello, world!";
+
+    private StartupBenchmark() { }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals(FORKED_OPTION)) {
+            System.out.println(measure(args[1]));
+            return;
+        }
+
+        List<String> encodingNames = (args.length > 0)? Arrays.asList(args)
+                : Arrays.stream(EncodingType.values()).map(EncodingType::encodingName).toList();
+        int forks = Integer.getInteger("benchmark.forks", 3);
+        System.out.println(Measurement.HEADER);
+        for (String encodingName : encodingNames)
+            for (int fork = 0; fork < forks; fork++)
+                System.out.println(fork(encodingName));
+    }
+
+    private static String fork(String encodingName) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), FORKED_OPTION, encodingName));
+
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes()).strip();
+        if (process.waitFor() != 0)
+            throw new IllegalStateException("Benchmark of " + encodingName + " failed with exit code " + process.exitValue());
+        return output;
+    }
+
+    private static Measurement measure(String encodingName) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long baselineHeap = usedHeapAfterGc(memory);
+        long baselineAllocated = allocatedBytes();
+
+        long start = System.nanoTime();
+        Encoding encoding = Encoding.forName(encodingName);
+        int vocabularySize = encoding.mergeableRanks().size();
+        long vocabularyLoaded = System.nanoTime();
+        GPT3Tokenizer tokenizer = new GPT3Tokenizer(encoding);
+        long tokenizerBuilt = System.nanoTime();
+        int firstToken = tokenizer.encodeToArray(FIRST_TEXT)[0];
+        long firstTokenEncoded = System.nanoTime();
+
+        long allocated = allocatedBytes() - baselineAllocated;
+        long retainedHeap = usedHeapAfterGc(memory) - baselineHeap;
+        long footprint = tokenizer.getCompiledEncoding().vocabulary().memoryFootprint();
+        if (firstToken < 0 || vocabularySize == 0)
+            throw new AssertionError("Unexpected encoding result");
+        return new Measurement(encodingName, vocabularySize,
+                vocabularyLoaded - start, tokenizerBuilt - vocabularyLoaded, firstTokenEncoded - start,
+                allocated, retainedHeap, footprint);
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memory) {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    /** Returns the bytes allocated so far by all live threads, including the fork-join pool threads parsing vocabularies. */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean allocationAware && allocationAware.isThreadAllocatedMemorySupported()) {
+            long total = 0;
+            for (long allocated : allocationAware.getThreadAllocatedBytes(threads.getAllThreadIds()))
+                total += Math.max(allocated, 0);
+            return total;
+        }
+        return -1;
+    }
+
+    private record Measurement(String encodingName, int vocabularySize,
+                               long loadNanos, long buildNanos, long firstTokenNanos,
+                               long allocatedBytes, long retainedBytes, long footprintBytes) {
+
+        static final String HEADER = String.format("%-12s %8s %10s %10s %12s %12s %12s %12s",
+                "encoding", "tokens", "load ms", "build ms", "1st token ms", "alloc KiB", "retained KiB", "vocab KiB");
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %8d %10.1f %10.1f %12.1f %12d %12d %12d",
+                    encodingName, vocabularySize, loadNanos / 1e6, buildNanos / 1e6, firstTokenNanos / 1e6,
+                    allocatedBytes / 1024, retainedBytes / 1024, footprintBytes / 1024);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.regex.Pattern;
+
+/**
+ * Hand-written scanners equivalent to the pre-tokenization patterns of the bundled encodings.
+ * <p>
+ * Each scanner replicates the match the {@code java.util.regex} engine would find at a given
+ * position, including the order in which alternatives are tried and the backtracking into
+ * greedy quantifiers. Code points are classified by a table precomputed for the Basic
+ * Multilingual Plane.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class BuiltInPreTokenizers {
+
+    static final PreTokenizer R50K = new R50kScanner();
+    static final PreTokenizer CL100K = new Cl100kScanner();
+    static final PreTokenizer O200K = new O200kScanner();
+
+    private BuiltInPreTokenizers() { }
+
+    /**
+     * Returns the scanner equivalent to the given pattern, or {@code null} if there's none.
+     */
+    static PreTokenizer forPattern(Pattern pattern) {
+        if (isSame(pattern, Encoding.O200K_BASE.pattern()))
+            return O200K;
+        if (isSame(pattern, Encoding.CL100K_BASE.pattern()))
+            return CL100K;
+        if (isSame(pattern, Encoding.R50K_BASE.pattern()) || isSame(pattern, Encoding.P50K_BASE.pattern()))
+            return R50K;
+        return null;
+    }
+
+    private static boolean isSame(Pattern pattern, Pattern other) {
+        return pattern == other || (pattern.flags() == other.flags() && pattern.pattern().equals(other.pattern()));
+    }
+
+    // Code point classes
+    static final int UPPER = 1;         // \p{Lu}, \p{Lt}
+    static final int LOWER = 2;         // \p{Ll}
+    static final int OTHER_LETTER = 4;  // \p{Lm}, \p{Lo}
+    static final int MARK = 8;          // \p{M}
+    static final int NUMBER = 16;       // \p{N}
+    static final int WHITESPACE = 32;   // \s with UNICODE_CHARACTER_CLASS
+    static final int NEWLINE = 64;      // [\r\n]
+    static final int LETTER = UPPER | LOWER | OTHER_LETTER;
+    static final int UPPER_CASED = UPPER | OTHER_LETTER | MARK;     // [\p{Lu}\p{Lt}\p{Lm}\p{Lo}\p{M}]
+    static final int LOWER_CASED = LOWER | OTHER_LETTER | MARK;     // [\p{Ll}\p{Lm}\p{Lo}\p{M}]
+
+    private static final class Table {
+        private static final byte[] BMP_CLASSES = new byte[Character.MAX_VALUE + 1];
+        static {
+            for (int c = 0; c <= Character.MAX_VALUE; c++)
+                BMP_CLASSES[c] = (byte) computeClassOf(c);
+        }
+    }
+
+    static int classOf(int codePoint) {
+        return (codePoint <= Character.MAX_VALUE)? Table.BMP_CLASSES[codePoint] : computeClassOf(codePoint);
+    }
+
+    private static int computeClassOf(int codePoint) {
+        int cls = switch (Character.getType(codePoint)) {
+            case Character.UPPERCASE_LETTER, Character.TITLECASE_LETTER -> UPPER;
+            case Character.LOWERCASE_LETTER -> LOWER;
+            case Character.MODIFIER_LETTER, Character.OTHER_LETTER -> OTHER_LETTER;
+            case Character.NON_SPACING_MARK, Character.ENCLOSING_MARK, Character.COMBINING_SPACING_MARK -> MARK;
+            case Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER -> NUMBER;
+            case Character.SPACE_SEPARATOR, Character.LINE_SEPARATOR, Character.PARAGRAPH_SEPARATOR -> WHITESPACE;
+            default -> 0;
+        };
+        if ((codePoint >= 0x9 && codePoint <= 0xD) || codePoint == 0x85)
+            cls |= WHITESPACE;
+        if (codePoint == '\r' || codePoint == '\n')
+            cls |= NEWLINE;
+        return cls;
+    }
+
+    /**
+     * Returns the code point at the given index, never combining a surrogate pair across the end
+     * of the range.
+     */
+    static int codePointAt(CharSequence text, int index, int end) {
+        char c = text.charAt(index);
+        if (Character.isHighSurrogate(c) && index + 1 < end) {
+            char d = text.charAt(index + 1);
+            if (Character.isLowSurrogate(d))
+                return Character.toCodePoint(c, d);
+        }
+        return c;
+    }
+
+    /** Checks if the class matches {@code [^\s\p{L}\p{N}]}. */
+    private static boolean isOther(int cls) {
+        return (cls & (LETTER | NUMBER | WHITESPACE)) == 0;
+    }
+
+    /** Checks if the class matches {@code [^\r\n\p{L}\p{N}]}. */
+    private static boolean isPrefix(int cls) {
+        return (cls & (LETTER | NUMBER | NEWLINE)) == 0;
+    }
+
+    /** Skips code points belonging to any of the given classes. */
+    private static int skipAny(CharSequence text, int index, int end, int classes) {
+        while (index < end) {
+            int codePoint = codePointAt(text, index, end);
+            if ((classOf(codePoint) & classes) == 0)
+                break;
+            index += Character.charCount(codePoint);
+        }
+        return index;
+    }
+
+    /** Skips {@code [^\s\p{L}\p{N}]+}. */
+    private static int skipOther(CharSequence text, int index, int end) {
+        while (index < end) {
+            int codePoint = codePointAt(text, index, end);
+            if (!isOther(classOf(codePoint)))
+                break;
+            index += Character.charCount(codePoint);
+        }
+        return index;
+    }
+
+    /** Skips {@code \p{N}{1,3}}, assuming the first code point is a number. */
+    private static int skipNumber(CharSequence text, int index, int end) {
+        for (int count = 0; count < 3 && index < end; count++) {
+            int codePoint = codePointAt(text, index, end);
+            if ((classOf(codePoint) & NUMBER) == 0)
+                break;
+            index += Character.charCount(codePoint);
+        }
+        return index;
+    }
+
+    /** Skips {@code [\r\n]*}, or {@code [\r\n/]*} when slashes are included. */
+    private static int skipNewlines(CharSequence text, int index, int end, boolean slashes) {
+        while (index < end) {
+            char c = text.charAt(index);
+            if (c != '\r' && c != '\n' && (!slashes || c != '/'))
+                break;
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Matches whitespace at the given position, which is known to be whitespace, by the
+     * alternatives {@code \s*[\r\n]+} (only if {@code newlines} is set), {@code \s+(?!\S)}
+     * and {@code \s+}, tried in this order.
+     */
+    private static int matchWhitespace(CharSequence text, int start, int end, boolean newlines) {
+        int index = start, lastNewline = -1;
+        while (index < end) {
+            int cls = classOf(text.charAt(index)); // all whitespace is in the BMP
+            if ((cls & WHITESPACE) == 0)
+                break;
+            if ((cls & NEWLINE) != 0)
+                lastNewline = index;
+            index++;
+        }
+        if (newlines && lastNewline >= 0)
+            return lastNewline + 1;
+        if (index == end || index - start == 1)
+            return index;
+        return index - 1; // leave the last whitespace for the next piece
+    }
+
+    /**
+     * Matches the contractions {@code 's|'t|'re|'ve|'m|'ll|'d} at the given position.
+     *
+     * @return the length of the match, or zero if there's none
+     */
+    private static int matchContraction(CharSequence text, int index, int end, boolean ignoreCase) {
+        if (index + 1 >= end || text.charAt(index) != '\'')
+            return 0;
+        char c1 = text.charAt(index + 1);
+        if (is(c1, 's', ignoreCase) || is(c1, 't', ignoreCase) || is(c1, 'm', ignoreCase) || is(c1, 'd', ignoreCase))
+            return 2;
+        if (index + 2 < end) {
+            char c2 = text.charAt(index + 2);
+            if ((is(c1, 'r', ignoreCase) && is(c2, 'e', ignoreCase))
+                    || (is(c1, 'v', ignoreCase) && is(c2, 'e', ignoreCase))
+                    || (is(c1, 'l', ignoreCase) && is(c2, 'l', ignoreCase)))
+                return 3;
+        }
+        return 0;
+    }
+
+    /** Compares characters in the same way as the regex engine does with {@code UNICODE_CASE}. */
+    private static boolean is(char c, char lowerCase, boolean ignoreCase) {
+        return c == lowerCase || (ignoreCase && Character.toLowerCase(Character.toUpperCase(c)) == lowerCase);
+    }
+
+    private abstract static class Scanner implements PreTokenizer {
+
+        @Override
+        public void split(CharSequence text, int start, int end, PieceConsumer consumer) {
+            while (start < end) {
+                int pieceEnd = matchPiece(text, start, end);
+                consumer.accept(text, start, pieceEnd);
+                start = pieceEnd;
+            }
+        }
+
+        /**
+         * Returns the end of the piece starting at the given position.
+         */
+        abstract int matchPiece(CharSequence text, int start, int end);
+    }
+
+    /**
+     * Scanner for {@code 's|'t|'re|'ve|'m|'ll|'d| ?\p{L}+| ?\p{N}+| ?[^\s\p{L}\p{N}]+|\s+(?!\S)|\s+}
+     * used by r50k_base, p50k_base and p50k_edit.
+     */
+    private static final class R50kScanner extends Scanner {
+
+        @Override
+        int matchPiece(CharSequence text, int start, int end) {
+            char c = text.charAt(start);
+            if (c == '\'') {
+                int length = matchContraction(text, start, end, false);
+                if (length > 0)
+                    return start + length;
+            }
+
+            int index = start;
+            if (c == ' ' && start + 1 < end && (classOf(codePointAt(text, start + 1, end)) & WHITESPACE) == 0)
+                index++;
+
+            int cls = classOf(codePointAt(text, index, end));
+            if ((cls & LETTER) != 0)
+                return skipAny(text, index, end, LETTER);
+            if ((cls & NUMBER) != 0)
+                return skipAny(text, index, end, NUMBER);
+            if ((cls & WHITESPACE) == 0)
+                return skipOther(text, index, end);
+            return matchWhitespace(text, start, end, false);
+        }
+    }
+
+    /**
+     * Scanner for {@code (?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\r\n\p{L}\p{N}]?\p{L}+|\p{N}{1,3}| ?[^\s\p{L}\p{N}]+[\r\n]*|\s*[\r\n]+|\s+(?!\S)|\s+}
+     * used by cl100k_base.
+     */
+    private static final class Cl100kScanner extends Scanner {
+
+        @Override
+        int matchPiece(CharSequence text, int start, int end) {
+            int codePoint = codePointAt(text, start, end);
+            int next = start + Character.charCount(codePoint);
+            int cls = classOf(codePoint);
+            if (codePoint == '\'') {
+                int length = matchContraction(text, start, end, true);
+                if (length > 0)
+                    return start + length;
+            }
+            if ((cls & LETTER) != 0)
+                return skipAny(text, next, end, LETTER);
+            if (isPrefix(cls) && next < end && (classOf(codePointAt(text, next, end)) & LETTER) != 0)
+                return skipAny(text, next, end, LETTER);
+            if ((cls & NUMBER) != 0)
+                return skipNumber(text, start, end);
+
+            int index = start;
+            if (codePoint == ' ' && next < end && isOther(classOf(codePointAt(text, next, end)))) {
+                index = next;
+                cls = classOf(codePointAt(text, index, end));
+            }
+            if (isOther(cls))
+                return skipNewlines(text, skipOther(text, index, end), end, false);
+            return matchWhitespace(text, start, end, true);
+        }
+    }
+
+    /**
+     * Scanner for the o200k_base pattern:
+     * <pre>
+     * [^\r\n\p{L}\p{N}]?[\p{Lu}\p{Lt}\p{Lm}\p{Lo}\p{M}]*[\p{Ll}\p{Lm}\p{Lo}\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?
+     * |[^\r\n\p{L}\p{N}]?[\p{Lu}\p{Lt}\p{Lm}\p{Lo}\p{M}]+[\p{Ll}\p{Lm}\p{Lo}\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?
+     * |\p{N}{1,3}
+     * | ?[^\s\p{L}\p{N}]+[\r\n/]*
+     * |\s*[\r\n]+
+     * |\s+(?!\S)
+     * |\s+
+     * </pre>
+     */
+    private static final class O200kScanner extends Scanner {
+
+        @Override
+        int matchPiece(CharSequence text, int start, int end) {
+            int codePoint = codePointAt(text, start, end);
+            int next = start + Character.charCount(codePoint);
+            int cls = classOf(codePoint);
+            boolean prefixed = isPrefix(cls) && next < end;
+
+            int pieceEnd;
+            if (prefixed && (pieceEnd = matchLowerCasedWord(text, next, end)) >= 0)
+                return pieceEnd;
+            if ((pieceEnd = matchLowerCasedWord(text, start, end)) >= 0)
+                return pieceEnd;
+            if (prefixed && (pieceEnd = matchUpperCasedWord(text, next, end)) >= 0)
+                return pieceEnd;
+            if ((pieceEnd = matchUpperCasedWord(text, start, end)) >= 0)
+                return pieceEnd;
+            if ((cls & NUMBER) != 0)
+                return skipNumber(text, start, end);
+
+            int index = start;
+            if (codePoint == ' ' && next < end && isOther(classOf(codePointAt(text, next, end)))) {
+                index = next;
+                cls = classOf(codePointAt(text, index, end));
+            }
+            if (isOther(cls))
+                return skipNewlines(text, skipOther(text, index, end), end, true);
+            return matchWhitespace(text, start, end, true);
+        }
+
+        /**
+         * Matches {@code [\p{Lu}\p{Lt}\p{Lm}\p{Lo}\p{M}]*[\p{Ll}\p{Lm}\p{Lo}\p{M}]+} followed by an optional contraction.
+         *
+         * @return the end of the match, or {@code -1} if there's none
+         */
+        private static int matchLowerCasedWord(CharSequence text, int start, int end) {
+            int index = start, lastLowerCased = -1;
+            while (index < end) {
+                int codePoint = codePointAt(text, index, end);
+                int cls = classOf(codePoint);
+                if ((cls & UPPER_CASED) == 0)
+                    break;
+                if ((cls & LOWER_CASED) != 0)
+                    lastLowerCased = index;
+                index += Character.charCount(codePoint);
+            }
+
+            int wordEnd;
+            if (index < end && (classOf(codePointAt(text, index, end)) & LOWER_CASED) != 0)
+                wordEnd = skipAny(text, index, end, LOWER_CASED);
+            else if (lastLowerCased >= 0) // backtrack into the upper-cased run
+                wordEnd = lastLowerCased + Character.charCount(codePointAt(text, lastLowerCased, end));
+            else
+                return -1;
+            return wordEnd + matchContraction(text, wordEnd, end, true);
+        }
+
+        /**
+         * Matches {@code [\p{Lu}\p{Lt}\p{Lm}\p{Lo}\p{M}]+[\p{Ll}\p{Lm}\p{Lo}\p{M}]*} followed by an optional contraction.
+         *
+         * @return the end of the match, or {@code -1} if there's none
+         */
+        private static int matchUpperCasedWord(CharSequence text, int start, int end) {
+            int index = skipAny(text, start, end, UPPER_CASED);
+            if (index == start)
+                return -1;
+            int wordEnd = skipAny(text, index, end, LOWER_CASED);
+            return wordEnd + matchContraction(text, wordEnd, end, true);
+        }
+    }
+}
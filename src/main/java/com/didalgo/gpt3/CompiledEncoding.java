@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The immutable structures derived from an {@link Encoding} for encoding and decoding text,
+ * i.e. the vocabulary, the decoder table, the special token matcher and the pre-tokenizer.
+ * <p>
+ * A compiled encoding is built once per {@code Encoding} instance and shared by all
+ * {@link GPT3Tokenizer}s created for it, including those of every {@link ModelType} mapping
+ * to the encoding. How long it is retained is governed by the global {@link Retention} policy:
+ * either until explicitly {@link #unload(Encoding) unloaded}, or for as long as the garbage
+ * collector keeps it softly reachable. Each build of an encoding compiled before, and dropped
+ * by the garbage collector since, is counted by {@link #rebuildCount()}, to help spotting the
+ * effects of the chosen policy.</p>
+ * <p>
+ * Encodings are held weakly, and compiled forms don't refer back to them, so that a custom
+ * encoding no longer referenced elsewhere can be collected under any policy. Its compiled form
+ * is then dropped on the next access to any compiled encoding. A vocabulary loaded from a class
+ * path resource, and shared by the encodings of that resource, is held strongly only by their
+ * compiled forms, so unloading all of them lets the garbage collector reclaim it as well, under
+ * memory pressure.</p>
+ * <p>
+ * Encodings named by the {@value #SNAPSHOT_PROPERTY} system property, as a comma-separated
+ * list, are compiled as soon as this class is initialized. Combined with build-time class
+ * initialization of a GraalVM native image, this snapshots the compiled encodings into the
+ * image heap, so that they're usable right at process start. Unknown names, and encodings
+ * failing to compile, are reported to the {@link System.Logger} of this class and skipped,
+ * without failing the initialization.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class CompiledEncoding {
+
+    /**
+     * The policy of retaining compiled encodings between uses.
+     */
+    public enum Retention {
+        /** Compiled encodings are retained until explicitly unloaded. */
+        STRONG,
+        /** Compiled encodings are retained until unloaded or dropped under memory pressure. */
+        SOFT
+    }
+
+    /** The system property naming the encodings to compile when this class is initialized. */
+    public static final String SNAPSHOT_PROPERTY = "com.didalgo.gpt3.snapshot";
+
+    private static final Map<EncodingKey, Slot> slots = new HashMap<>();
+    private static final ReferenceQueue<Encoding> collectedEncodings = new ReferenceQueue<>();
+    private static final LongAdder rebuildCount = new LongAdder();
+    private static final System.Logger logger = System.getLogger(CompiledEncoding.class.getName());
+    private static volatile Retention retention = Retention.STRONG;
+    static {
+        compileAll(System.getProperty(SNAPSHOT_PROPERTY, ""));
+    }
+
+    private final Pattern pattern;
+    private final Vocabulary vocabulary;
+    private final Map<String, Integer> specialTokens;
+    private final TokenDecoder decoder;
+    private final SpecialTokenMatcher specialMatcher;
+    private final PreTokenizer preTokenizer;
+
+    private CompiledEncoding(Encoding encoding) {
+        this.pattern = encoding.pattern();
+        this.vocabulary = encoding.vocabulary();
+        this.specialTokens = encoding.specialTokens();
+        this.decoder = new TokenDecoder(vocabulary, specialTokens);
+        this.specialMatcher = new SpecialTokenMatcher(specialTokens);
+        this.preTokenizer = encoding.preTokenizer();
+    }
+
+    /**
+     * Returns the compiled form of the given encoding, building it if it's not retained.
+     *
+     * @param encoding the encoding
+     * @return the compiled encoding
+     */
+    public static CompiledEncoding of(Encoding encoding) {
+        Objects.requireNonNull(encoding, "encoding");
+        Slot slot;
+        synchronized (slots) {
+            expungeCollectedEncodings();
+            slot = slots.computeIfAbsent(new EncodingKey(encoding, collectedEncodings), key -> new Slot());
+        }
+        return slot.get(encoding);
+    }
+
+    /**
+     * Drops the compiled form of the given encoding, if retained, and forgets the encoding.
+     * Tokenizers already using it are unaffected, while the next one created for the encoding
+     * gets it built anew.
+     *
+     * @param encoding the encoding
+     */
+    public static void unload(Encoding encoding) {
+        Slot slot;
+        synchronized (slots) {
+            expungeCollectedEncodings();
+            slot = slots.remove(new EncodingKey(encoding, null));
+        }
+        if (slot != null)
+            slot.clear();
+    }
+
+    /**
+     * Drops the compiled forms of all encodings, and forgets the encodings.
+     */
+    public static void unloadAll() {
+        Slot[] unloaded;
+        synchronized (slots) {
+            unloaded = slots.values().toArray(new Slot[0]);
+            slots.clear();
+        }
+        for (Slot slot : unloaded)
+            slot.clear();
+    }
+
+    /**
+     * Returns the current retention policy, {@link Retention#STRONG} by default.
+     *
+     * @return the retention policy
+     */
+    public static Retention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Sets the retention policy, applying it also to the compiled encodings retained so far.
+     *
+     * @param retention the retention policy
+     */
+    public static void setRetention(Retention retention) {
+        CompiledEncoding.retention = Objects.requireNonNull(retention, "retention");
+        for (Slot slot : slots())
+            slot.retain(retention);
+    }
+
+    /**
+     * Returns the number of times an encoding was compiled again, after its earlier compiled
+     * form had been dropped by the garbage collector.
+     *
+     * @return the rebuild count
+     */
+    public static long rebuildCount() {
+        return rebuildCount.sum();
+    }
+
+    /**
+     * Compiles the encodings named in the given comma-separated list, skipping, after logging
+     * a warning, those with unknown names or failing to compile.
+     *
+     * @return the number of encodings compiled
+     */
+    static int compileAll(String encodingNames) {
+        int count = 0;
+        for (String encodingName : encodingNames.split(",")) {
+            if (encodingName.isBlank())
+                continue;
+            try {
+                of(Encoding.forName(encodingName.strip()));
+                count++;
+            } catch (RuntimeException e) {
+                logger.log(System.Logger.Level.WARNING, "Cannot compile encoding: " + encodingName.strip(), e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Clears the soft references to compiled encodings, as the garbage collector does under
+     * memory pressure. Used by tests.
+     */
+    static void clearSoftReferences() {
+        for (Slot slot : slots())
+            slot.clearSoft();
+    }
+
+    private static Slot[] slots() {
+        synchronized (slots) {
+            expungeCollectedEncodings();
+            return slots.values().toArray(new Slot[0]);
+        }
+    }
+
+    private static void expungeCollectedEncodings() {
+        for (Reference<?> key; (key = collectedEncodings.poll()) != null; )
+            slots.remove(key);
+    }
+
+    /**
+     * Returns the pattern splitting text into pieces, of the encoding this was compiled from.
+     *
+     * @return the pattern
+     */
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the vocabulary of the encoding.
+     *
+     * @return the vocabulary
+     */
+    public Vocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    Map<String, Integer> specialTokens() {
+        return specialTokens;
+    }
+
+    TokenDecoder decoder() {
+        return decoder;
+    }
+
+    SpecialTokenMatcher specialMatcher() {
+        return specialMatcher;
+    }
+
+    PreTokenizer preTokenizer() {
+        return preTokenizer;
+    }
+
+    /**
+     * Refers weakly to an encoding, comparing encodings by identity, as the encodings themselves
+     * may be records comparing whole vocabularies.
+     */
+    private static final class EncodingKey extends WeakReference<Encoding> {
+        private final int hash;
+
+        EncodingKey(Encoding encoding, ReferenceQueue<Encoding> queue) {
+            super(encoding, queue);
+            this.hash = System.identityHashCode(encoding);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            Encoding encoding;
+            return obj instanceof EncodingKey key && (encoding = get()) != null && encoding == key.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Holds the compiled form of a single encoding, without referring to the encoding itself,
+     * guarded by its own monitor, so that encodings are compiled independently of each other.
+     */
+    private static final class Slot {
+        private CompiledEncoding strong;
+        private SoftReference<CompiledEncoding> soft;
+        private boolean built;
+
+        synchronized CompiledEncoding get(Encoding encoding) {
+            CompiledEncoding compiled = retained();
+            if (compiled == null) {
+                if (built)
+                    rebuildCount.increment();
+                compiled = new CompiledEncoding(encoding);
+                built = true;
+                hold(compiled, retention);
+            }
+            return compiled;
+        }
+
+        synchronized void retain(Retention retention) {
+            CompiledEncoding compiled = retained();
+            if (compiled != null)
+                hold(compiled, retention);
+        }
+
+        synchronized void clear() {
+            strong = null;
+            soft = null;
+        }
+
+        synchronized void clearSoft() {
+            if (soft != null)
+                soft.clear();
+        }
+
+        private CompiledEncoding retained() {
+            if (strong != null)
+                return strong;
+            return (soft != null)? soft.get() : null;
+        }
+
+        private void hold(CompiledEncoding compiled, Retention retention) {
+            strong = (retention == Retention.STRONG)? compiled : null;
+            soft = (retention == Retention.SOFT)? new SoftReference<>(compiled) : null;
+        }
+    }
+}
@@ -7,7 +7,8 @@
 package com.didalgo.gpt3;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -69,10 +70,32 @@ public interface Encoding {
 
     Map<ByteSequence, Integer> mergeableRanks();
 
+    /**
+     * Returns the vocabulary of this encoding, holding all {@link #mergeableRanks() mergeable
+     * ranks} in a few compact arrays.
+     * <p>
+     * The default implementation builds the vocabulary from the mergeable ranks, unless they
+     * are already a {@link Vocabulary#asMap() view} of a vocabulary.</p>
+     *
+     * @return the vocabulary
+     */
+    default Vocabulary vocabulary() {
+        return Vocabulary.of(mergeableRanks());
+    }
+
     Map<String, Integer> specialTokens();
 
     Pattern pattern();
 
+    /**
+     * Returns the pre-tokenizer splitting text into pieces as defined by the {@link #pattern()}.
+     *
+     * @return the pre-tokenizer
+     */
+    default PreTokenizer preTokenizer() {
+        return PreTokenizer.forPattern(pattern());
+    }
+
     record Of(
             String tiktokenFilename,
             Map<ByteSequence, Integer> mergeableRanks,
@@ -80,21 +103,100 @@ public interface Encoding {
             Pattern pattern
     ) implements Encoding {
         public Of {
+            if (!Vocabulary.isView(mergeableRanks) && mergeableRanks.isEmpty())
+                mergeableRanks = Vocabulary.resourceMap(tiktokenFilename);
             specialTokens = Collections.unmodifiableMap(new HashMap<>(specialTokens)); // only wrapped HashMap is efficient enough; Map.copyOf() has performance issues
         }
 
+        /**
+         * Returns the mergeable ranks given at construction or, if they were empty, the view of
+         * the vocabulary loaded on first access from the {@code tiktokenFilename} resource. The
+         * vocabulary is shared by all encodings loading it from the same resource.
+         *
+         * @return the unmodifiable map of byte sequences to their ranks
+         */
         @Override
         public Map<ByteSequence, Integer> mergeableRanks() {
-            if (mergeableRanks.isEmpty()) {
-                synchronized (mergeableRanks) {
-                    if (mergeableRanks.isEmpty())
-                        Lookup.loadTiktokenBase(tiktokenFilename, mergeableRanks);
-                }
-            }
+            if (Vocabulary.isView(mergeableRanks))
+                return mergeableRanks;
             return Collections.unmodifiableMap(this.mergeableRanks);
         }
     }
 
+    /**
+     * An encoding with the vocabulary loaded by one of the {@code load} methods, rather than
+     * from a class path resource.
+     *
+     * @param name          the name of the encoding, i.e. the name of the file the vocabulary
+     *                      was loaded from, or {@code null} if it was loaded from a stream or buffer
+     * @param vocabulary    the vocabulary of mergeable ranks
+     * @param specialTokens the ids of the special tokens
+     * @param pattern       the pattern splitting text into pieces
+     */
+    record Loaded(
+            String name,
+            Vocabulary vocabulary,
+            Map<String, Integer> specialTokens,
+            Pattern pattern
+    ) implements Encoding {
+        public Loaded {
+            Objects.requireNonNull(vocabulary, "vocabulary");
+            specialTokens = Collections.unmodifiableMap(new HashMap<>(specialTokens));
+        }
+
+        @Override
+        public Map<ByteSequence, Integer> mergeableRanks() {
+            return vocabulary.asMap();
+        }
+    }
+
+    /**
+     * Loads the encoding with the vocabulary from the given file, in the binary format,
+     * which is read with a few bulk copies, or in the text ({@code .tiktoken}) format. The
+     * encoding is named after the file.
+     *
+     * @param file          the vocabulary file
+     * @param specialTokens the ids of the special tokens
+     * @param pattern       the pattern splitting text into pieces, e.g. the pattern of one of
+     *                      the bundled encodings, to benefit from its dedicated pre-tokenizer
+     * @return the encoding
+     * @throws IOException if an I/O error occurs or the vocabulary is malformed
+     * @see Vocabulary#load(Path)
+     */
+    static Encoding load(Path file, Map<String, Integer> specialTokens, Pattern pattern) throws IOException {
+        return new Loaded(file.getFileName().toString(), Vocabulary.load(file), specialTokens, pattern);
+    }
+
+    /**
+     * Loads the encoding with the vocabulary read from the given stream, in the binary or in
+     * the text ({@code .tiktoken}) format.
+     *
+     * @param in            the vocabulary input stream
+     * @param specialTokens the ids of the special tokens
+     * @param pattern       the pattern splitting text into pieces
+     * @return the encoding
+     * @throws IOException if an I/O error occurs or the vocabulary is malformed
+     * @see Vocabulary#readFrom(InputStream)
+     */
+    static Encoding load(InputStream in, Map<String, Integer> specialTokens, Pattern pattern) throws IOException {
+        return new Loaded(null, Vocabulary.readFrom(in), specialTokens, pattern);
+    }
+
+    /**
+     * Loads the encoding with the vocabulary held by the remaining content of the given
+     * buffer, in the binary or in the text ({@code .tiktoken}) format.
+     *
+     * @param buffer        the buffer holding the vocabulary
+     * @param specialTokens the ids of the special tokens
+     * @param pattern       the pattern splitting text into pieces
+     * @return the encoding
+     * @throws IOException if the vocabulary is malformed
+     * @see Vocabulary#readFrom(ByteBuffer)
+     */
+    static Encoding load(ByteBuffer buffer, Map<String, Integer> specialTokens, Pattern pattern) throws IOException {
+        return new Loaded(null, Vocabulary.readFrom(buffer), specialTokens, pattern);
+    }
+
     static Encoding forName(String encodingName) {
         return switch (encodingName.toLowerCase()) {
             case "o200k_base" -> O200K_BASE;
@@ -165,23 +267,38 @@ public interface Encoding {
         }
 
         public static Map<ByteSequence, Integer> loadTiktokenBase(String filename, Map<ByteSequence, Integer> resultMap) {
-            try (InputStream in = Lookup.class.getResourceAsStream(filename)) {
-                var result = (resultMap == null)? new HashMap<ByteSequence, Integer>() : resultMap;
-                new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII)).lines()
-                        .filter(line -> !line.isEmpty())
-                        .forEach(line -> {
-                            int spaceIdx = line.indexOf(' ');
-                            if (spaceIdx > 0) {
-                                ByteSequence key = ByteSequence.of(Base64.getDecoder().decode(line.substring(0, spaceIdx)));
-                                int value = Integer.parseInt(line.substring(spaceIdx + 1));
-                                result.put(key, value);
-                            }
-                        });
+            var result = (resultMap == null)? new HashMap<ByteSequence, Integer>() : resultMap;
+            var vocabulary = Vocabulary.loadResource(VocabularyCompiler.binaryResourceName(filename));
+            if (vocabulary != null) {
+                result.putAll(vocabulary.asMap());
                 return result;
+            }
+            try (InputStream in = Lookup.class.getResourceAsStream(filename)) {
+                return loadTiktokenBase(in, result);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
+        /**
+         * Parses the vocabulary in the text ({@code .tiktoken}) format from the given stream,
+         * in parallel, putting its byte sequences and their ranks into the given map.
+         *
+         * @param in        the input stream
+         * @param resultMap the map to fill, or {@code null} to create a new one
+         * @return the filled map
+         * @throws IllegalArgumentException if the vocabulary is malformed or holds duplicate
+         *          ranks or byte sequences
+         * @throws UncheckedIOException if an I/O error occurs
+         */
+        public static Map<ByteSequence, Integer> loadTiktokenBase(InputStream in, Map<ByteSequence, Integer> resultMap) {
+            var result = (resultMap == null)? new HashMap<ByteSequence, Integer>() : resultMap;
+            try {
+                result.putAll(TiktokenParser.parse(in.readAllBytes()).asMap());
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
+            return result;
         }
     }
 }
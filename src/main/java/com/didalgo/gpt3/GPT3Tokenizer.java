@@ -6,16 +6,16 @@
  */
 package com.didalgo.gpt3;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.function.IntConsumer;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
-import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toMap;
 
 /**
  * Java implementation of the GPT3/4 tokenizer.
@@ -27,22 +27,101 @@ import static java.util.stream.Collectors.toMap;
  * </ul>
  */
 public class GPT3Tokenizer {
-    private final Map<ByteSequence, Integer> encoder;
-    private final Map<Integer, ByteSequence> decoder;
+    /** The piece length (in bytes) above which the heap-based merge is used instead of the linear scan. */
+    protected static final int LARGE_PIECE_THRESHOLD = 64;
+    /** The maximum length (in bytes) of pieces stored in the piece cache; longer ones are rarely repeated. */
+    protected static final int MAX_CACHED_PIECE_LENGTH = 64;
+    /** The sink discarding token ids, used when only the number of tokens is needed. */
+    private static final IntConsumer DISCARD = token -> { };
+
+    private final CompiledEncoding compiledEncoding;
+    private final Vocabulary vocabulary;
+    private final TokenDecoder decoder;
     private final Map<String, Integer> specialTokensEncoder;
-    private final Map<Integer, String> specialTokensDecoder;
     private final Pattern pattern;
-    private final Pattern specialPattern;
+    private volatile Pattern specialPattern;
+    private final PreTokenizer preTokenizer;
+    private final SpecialTokenMatcher specialMatcher;
+    private final PieceCache pieceCache;
+
+    /**
+     * The token ids of an encoded text, with the range of the text each token came from, in
+     * parallel arrays. The token {@code tokens[i]} came from the characters in
+     * {@code [starts[i], ends[i])}. A character split into multiple tokens at the byte level
+     * is covered entirely by each of them, so the ranges of such tokens overlap.
+     *
+     * @param tokens the token ids
+     * @param starts the start indexes of the tokens in the text, inclusive
+     * @param ends   the end indexes of the tokens in the text, exclusive
+     */
+    public record TokensWithOffsets(int[] tokens, int[] starts, int[] ends) {
+
+        /**
+         * Returns the number of tokens.
+         *
+         * @return the number of tokens
+         */
+        public int size() {
+            return tokens.length;
+        }
+    }
 
     public GPT3Tokenizer(Encoding encoding) {
-        this.encoder = encoding.mergeableRanks();
-        this.decoder = encoder.entrySet().stream()
-                .collect(toMap(Entry::getValue, Entry::getKey));
-        this.specialTokensEncoder = encoding.specialTokens();
-        this.specialTokensDecoder = specialTokensEncoder.entrySet().stream()
-                .collect(toMap(Entry::getValue, Entry::getKey));
-        this.pattern = encoding.pattern();
-        this.specialPattern = createSpecialRegex(encoding.specialTokens());
+        this(encoding, null);
+    }
+
+    /**
+     * Creates a tokenizer for the given encoding, which caches the tokens of pieces requiring
+     * byte pair merges in the given cache.
+     * <p>
+     * The cache may be shared by tokenizers used concurrently, but only if they're created
+     * for the same encoding.</p>
+     *
+     * @param encoding   the encoding
+     * @param pieceCache the cache of encoded pieces, or {@code null} for no caching
+     */
+    public GPT3Tokenizer(Encoding encoding, PieceCache pieceCache) {
+        this(CompiledEncoding.of(encoding), pieceCache);
+    }
+
+    public GPT3Tokenizer(CompiledEncoding compiledEncoding) {
+        this(compiledEncoding, null);
+    }
+
+    /**
+     * Creates a tokenizer for the given compiled encoding, which caches the tokens of pieces
+     * requiring byte pair merges in the given cache.
+     *
+     * @param compiledEncoding the compiled encoding
+     * @param pieceCache       the cache of encoded pieces, or {@code null} for no caching
+     */
+    public GPT3Tokenizer(CompiledEncoding compiledEncoding, PieceCache pieceCache) {
+        this.compiledEncoding = compiledEncoding;
+        this.vocabulary = compiledEncoding.vocabulary();
+        this.specialTokensEncoder = compiledEncoding.specialTokens();
+        this.decoder = compiledEncoding.decoder();
+        this.pattern = compiledEncoding.pattern();
+        this.preTokenizer = compiledEncoding.preTokenizer();
+        this.specialMatcher = compiledEncoding.specialMatcher();
+        this.pieceCache = pieceCache;
+    }
+
+    /**
+     * Returns the compiled encoding used by this tokenizer.
+     *
+     * @return the compiled encoding
+     */
+    public CompiledEncoding getCompiledEncoding() {
+        return compiledEncoding;
+    }
+
+    /**
+     * Returns the cache of encoded pieces used by this tokenizer, if any.
+     *
+     * @return the piece cache
+     */
+    public Optional<PieceCache> getPieceCache() {
+        return Optional.ofNullable(pieceCache);
     }
 
     protected Pattern createSpecialRegex(Map<String, ?> specialTokensEncoder) {
@@ -57,16 +136,116 @@ public class GPT3Tokenizer {
     }
 
     protected String decodeImpl(List<Integer> tokens) {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        return new String(decoder.decode(tokens), UTF_8);
+    }
 
-        for (Integer token : tokens) {
-            ByteSequence bytes = decoder.get(token);
-            if (bytes != null)
-                result.writeBytes(bytes.toByteArray());
-            else
-                result.writeBytes(specialTokensDecoder.get(token).getBytes(ISO_8859_1));
-        }
-        return result.toString(UTF_8);
+    /**
+     * Decodes the given array of tokens into text.
+     *
+     * @param tokens the tokens
+     * @return the decoded text
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    public String decode(int[] tokens) {
+        return decode(tokens, 0, tokens.length);
+    }
+
+    /**
+     * Decodes the given range of tokens into text.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @return the decoded text
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    public String decode(int[] tokens, int from, int to) {
+        return new String(decoder.decode(tokens, from, to), UTF_8);
+    }
+
+    /**
+     * Decodes the given range of tokens into text, appending it to the given sink. The bytes of
+     * the tokens are streamed from the vocabulary in chunks of a fixed size, never copied as a
+     * whole, and decoded straight into a {@link CharBuffer} with room for the text.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @param out    the sink of the decoded text, e.g. a {@code StringBuilder}, a {@code Writer}
+     *               or a {@code CharBuffer}
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws java.nio.BufferOverflowException if the text doesn't fit in the given {@code CharBuffer},
+     *          in which case part of it may already have been appended
+     * @throws IOException if the sink fails to append the text
+     */
+    public void decode(int[] tokens, int from, int to, Appendable out) throws IOException {
+        decoder.decode(tokens, from, to, out);
+    }
+
+    /**
+     * Decodes the given tokens into raw bytes, skipping the UTF-8 decoding.
+     *
+     * @param tokens the tokens
+     * @return the concatenated bytes of the tokens
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    public byte[] decodeBytes(List<Integer> tokens) {
+        return decoder.decode(tokens);
+    }
+
+    /**
+     * Decodes the given range of tokens into raw bytes, skipping the UTF-8 decoding.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @return the concatenated bytes of the tokens
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    public byte[] decodeBytes(int[] tokens, int from, int to) {
+        return decoder.decode(tokens, from, to);
+    }
+
+    /**
+     * Decodes the given range of tokens into raw bytes, putting them straight into the given
+     * heap or direct buffer. Nothing is put if any of the tokens is unknown or the buffer lacks
+     * space for all the bytes.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @param dst    the buffer to put the bytes into
+     * @return the number of bytes put
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws java.nio.BufferOverflowException if the buffer has too little space remaining
+     */
+    public int decodeBytes(int[] tokens, int from, int to, ByteBuffer dst) {
+        return decoder.decode(tokens, from, to, dst);
+    }
+
+    /**
+     * Decodes the given range of tokens into raw bytes, writing them straight to the given
+     * stream. Nothing is written if any of the tokens is unknown.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @param out    the stream to write the bytes to
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws IOException if an I/O error occurs
+     */
+    public void decodeBytes(int[] tokens, int from, int to, OutputStream out) throws IOException {
+        decoder.decode(tokens, from, to, out);
+    }
+
+    /**
+     * Creates a decoder of a stream of tokens, e.g. of a streamed completion, emitting the
+     * characters completed by each consecutive token.
+     *
+     * @return the new streaming decoder
+     */
+    public StreamingDecoder newStreamingDecoder() {
+        return new StreamingDecoder(decoder);
     }
 
     /**
@@ -75,6 +254,9 @@ public class GPT3Tokenizer {
      * @return the special tokenizing pattern
      */
     protected Pattern getTlSpecialRegex() {
+        Pattern specialPattern = this.specialPattern;
+        if (specialPattern == null)
+            this.specialPattern = specialPattern = createSpecialRegex(specialTokensEncoder);
         return specialPattern;
     }
 
@@ -87,6 +269,15 @@ public class GPT3Tokenizer {
         return pattern;
     }
 
+    /**
+     * Returns the pre-tokenizer splitting text into pieces
+     *
+     * @return the pre-tokenizer
+     */
+    protected PreTokenizer getPreTokenizer() {
+        return preTokenizer;
+    }
+
     public List<Integer> encode(CharSequence text) {
         return encode(text, false);
     }
@@ -99,121 +290,545 @@ public class GPT3Tokenizer {
         return encodeImpl(text, allowedSpecial);
     }
 
+    /**
+     * Encodes the given text, recognizing the allowed special tokens and rejecting the text
+     * if it contains any of the disallowed ones.
+     * <p>
+     * Special tokens which are neither allowed nor disallowed are encoded as ordinary text.
+     * To follow the default behavior of tiktoken, pass {@code specialTokens()} as the
+     * disallowed set.</p>
+     *
+     * @param text              the text to encode
+     * @param allowedSpecial    the special tokens allowed to be recognized in the text
+     * @param disallowedSpecial the special tokens not allowed to appear in the text
+     * @return the list of token ids
+     * @throws IllegalArgumentException if the text contains a disallowed special token
+     */
+    public List<Integer> encode(CharSequence text, Set<String> allowedSpecial, Set<String> disallowedSpecial) {
+        var tokens = new TokenArray(text.length() / 4);
+        encodeImpl(text, allowedSpecial, disallowedSpecial, tokens);
+        return tokens.toList();
+    }
+
+    /**
+     * Returns the special tokens known to this tokenizer.
+     *
+     * @return the unmodifiable set of special tokens
+     */
+    public Set<String> specialTokens() {
+        return Collections.unmodifiableSet(specialTokensEncoder.keySet());
+    }
+
+    /**
+     * Encodes the given text into an array of primitive token ids.
+     *
+     * @param text the text to encode
+     * @return the array of token ids
+     */
+    public int[] encodeToArray(CharSequence text) {
+        return encodeToArray(text, Set.of());
+    }
+
+    /**
+     * Encodes the given text into an array of primitive token ids, recognizing the given
+     * special tokens.
+     *
+     * @param text           the text to encode
+     * @param allowedSpecial the special tokens allowed to be recognized in the text
+     * @return the array of token ids
+     */
+    public int[] encodeToArray(CharSequence text, Set<String> allowedSpecial) {
+        var tokens = new TokenArray(text.length() / 4);
+        encodeImpl(text, allowedSpecial, tokens);
+        return tokens.toArray();
+    }
+
+    /**
+     * Encodes the given text into an array of token ids, along with the range of the text each
+     * of them came from.
+     *
+     * @param text the text to encode
+     * @return the token ids with their character offsets
+     */
+    public TokensWithOffsets encodeWithOffsets(CharSequence text) {
+        return encodeWithOffsets(text, Set.of());
+    }
+
+    /**
+     * Encodes the given text into an array of token ids, along with the range of the text each
+     * of them came from, recognizing the given special tokens.
+     *
+     * @param text           the text to encode
+     * @param allowedSpecial the special tokens allowed to be recognized in the text
+     * @return the token ids with their character offsets
+     */
+    public TokensWithOffsets encodeWithOffsets(CharSequence text, Set<String> allowedSpecial) {
+        int expectedSize = text.length() / 4;
+        var encoder = new OffsetsEncoder(new TokenArray(expectedSize), expectedSize);
+        encodeImpl(text, allowedSpecial, Set.of(), encoder);
+        return encoder.toResult();
+    }
+
+    /**
+     * Encodes the given text, passing each consecutive token id to the given sink,
+     * without boxing.
+     *
+     * @param text the text to encode
+     * @param sink the consumer of token ids, e.g. a {@link TokenArray}
+     */
+    public void encodeInto(CharSequence text, IntConsumer sink) {
+        encodeInto(text, Set.of(), sink);
+    }
+
+    /**
+     * Encodes the given text, recognizing the given special tokens, and passes each
+     * consecutive token id to the given sink, without boxing.
+     *
+     * @param text           the text to encode
+     * @param allowedSpecial the special tokens allowed to be recognized in the text
+     * @param sink           the consumer of token ids, e.g. a {@link TokenArray}
+     */
+    public void encodeInto(CharSequence text, Set<String> allowedSpecial, IntConsumer sink) {
+        encodeImpl(text, allowedSpecial, sink);
+    }
+
+    /**
+     * Encodes the given text, recognizing the allowed special tokens, and passes each
+     * consecutive token id to the given sink, without boxing. The text is rejected if it
+     * contains any of the disallowed special tokens.
+     *
+     * @param text              the text to encode
+     * @param allowedSpecial    the special tokens allowed to be recognized in the text
+     * @param disallowedSpecial the special tokens not allowed to appear in the text
+     * @param sink              the consumer of token ids, e.g. a {@link TokenArray}
+     * @throws IllegalArgumentException if the text contains a disallowed special token, in
+     *          which case the sink may already have received tokens preceding it
+     */
+    public void encodeInto(CharSequence text, Set<String> allowedSpecial, Set<String> disallowedSpecial, IntConsumer sink) {
+        encodeImpl(text, allowedSpecial, disallowedSpecial, sink);
+    }
+
+    /**
+     * Creates an encoder of text read from a stream, in windows of the
+     * {@link StreamingEncoder#DEFAULT_WINDOW_SIZE default size}.
+     *
+     * @return the new streaming encoder
+     */
+    public StreamingEncoder newStreamingEncoder() {
+        return newStreamingEncoder(StreamingEncoder.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates an encoder of text read from a stream, in windows of the given size.
+     *
+     * @param windowSize the number of characters read at once
+     * @return the new streaming encoder
+     * @throws IllegalArgumentException if the window size is less than 2
+     */
+    public StreamingEncoder newStreamingEncoder(int windowSize) {
+        return new StreamingEncoder(this, windowSize);
+    }
+
+    /**
+     * Creates the consumer encoding the pieces it accepts, and passing their tokens to the
+     * given sink.
+     */
+    PreTokenizer.PieceConsumer newPieceEncoder(IntConsumer sink) {
+        return new PieceEncoder(sink);
+    }
+
+    /**
+     * Creates the consumer counting the tokens of the pieces it accepts, without collecting
+     * the token ids, like {@link #countTokens(CharSequence)} does.
+     */
+    PieceEncoder newPieceCounter() {
+        return new PieceEncoder(DISCARD);
+    }
+
+    /**
+     * Counts the tokens the given text would be encoded into, without collecting the token ids.
+     * Equivalent to, but much cheaper than {@code encode(text).size()}.
+     *
+     * @param text the text to count tokens in
+     * @return the number of tokens
+     */
+    public int countTokens(CharSequence text) {
+        var counter = newPieceCounter();
+        getPreTokenizer().split(text, 0, text.length(), counter);
+        return Math.toIntExact(counter.tokenCount);
+    }
+
     protected List<Integer> encodeImpl(CharSequence text, Set<String> allowedSpecial) {
-        Pattern specialRegex = getTlSpecialRegex();
-        Pattern regex = getTlRegex();
-        List<Integer> ret = new ArrayList<>(text.length() / 4);
-
-        int start = 0;
-        int lastPieceTokenLen = 0;
-        while (true) {
-            Matcher nextSpecial;
-            int startFind = start;
-            while (true) {
-                // Find the next allowed special token, if any
-                nextSpecial = specialRegex.matcher(text.subSequence(startFind, text.length()));
-                if (nextSpecial.find()) {
-                    int startMatch = startFind + nextSpecial.start();
-                    if (allowedSpecial.contains(text.subSequence(startMatch, startMatch + nextSpecial.group().length()).toString())) {
-                        break;
+        var tokens = new TokenArray(text.length() / 4);
+        encodeImpl(text, allowedSpecial, tokens);
+        return tokens.toList();
+    }
+
+    protected void encodeImpl(CharSequence text, Set<String> allowedSpecial, IntConsumer result) {
+        encodeImpl(text, allowedSpecial, Set.of(), result);
+    }
+
+    protected void encodeImpl(CharSequence text, Set<String> allowedSpecial, Set<String> disallowedSpecial, IntConsumer result) {
+        encodeImpl(text, allowedSpecial, disallowedSpecial, new PieceEncoder(result));
+    }
+
+    private void encodeImpl(CharSequence text, Set<String> allowedSpecial, Set<String> disallowedSpecial, PieceEncoder pieceEncoder) {
+        PreTokenizer preTokenizer = getPreTokenizer();
+
+        // Skip looking for special tokens if none of them could matter
+        int length = text.length();
+        if (specialMatcher.isEmpty() || allowedSpecial.isEmpty() && disallowedSpecial.isEmpty()) {
+            preTokenizer.split(text, 0, length, pieceEncoder);
+            return;
+        }
+
+        int start = 0, startFind = 0;
+        long nextSpecial;
+        while ((nextSpecial = specialMatcher.find(text, startFind, length)) >= 0) {
+            int startMatch = (int) (nextSpecial >>> 32);
+            int index = (int) nextSpecial;
+            String special = specialMatcher.token(index);
+            if (allowedSpecial.contains(special)) {
+                // Split the text preceding the special token into pieces and encode each of them
+                preTokenizer.split(text, start, startMatch, pieceEncoder);
+                start = startFind = startMatch + special.length();
+                pieceEncoder.acceptSpecial(specialMatcher.tokenId(index), startMatch, start);
+            } else if (disallowedSpecial.contains(special)) {
+                throw new IllegalArgumentException("Encountered text corresponding to disallowed special token '" + special + "' at index " + startMatch);
+            } else {
+                startFind = startMatch + 1;
+            }
+        }
+        preTokenizer.split(text, start, length, pieceEncoder);
+    }
+
+    /**
+     * Encodes the piece occupying the given range of text.
+     *
+     * @param text   the text holding the piece
+     * @param start  the beginning index of the piece, inclusive
+     * @param end    the ending index of the piece, exclusive
+     * @param result the consumer of token ids
+     * @return the number of tokens of the piece
+     */
+    protected int encodePiece(CharSequence text, int start, int end, IntConsumer result) {
+        byte[] piece = text.subSequence(start, end).toString().getBytes(UTF_8);
+        return encodePiece(piece, 0, piece.length, result);
+    }
+
+    /**
+     * Encodes the piece given by the UTF-8 bytes occupying the given range of the array.
+     *
+     * @param piece  the array holding the piece bytes
+     * @param offset the offset of the first byte of the piece
+     * @param length the number of bytes in the piece
+     * @param result the consumer of token ids
+     * @return the number of tokens of the piece
+     */
+    protected int encodePiece(byte[] piece, int offset, int length, IntConsumer result) {
+        int token = vocabulary.rank(piece, offset, length);
+        if (token != Vocabulary.NO_RANK) {
+            result.accept(token);
+            return 1;
+        } else if (pieceCache == null || length > MAX_CACHED_PIECE_LENGTH) {
+            return bytePairMerge(piece, offset, length, result);
+        }
+
+        int[] tokens = pieceCache.get(piece, offset, length);
+        if (tokens == null) {
+            var merged = new TokenArray(length / 2);
+            bytePairMerge(piece, offset, length, merged);
+            tokens = merged.toArray();
+            pieceCache.put(piece, offset, length, tokens);
+        }
+        if (result != DISCARD) {
+            for (int t : tokens)
+                result.accept(t);
+        }
+        return tokens.length;
+    }
+
+    /**
+     * Encodes consecutive pieces of a single encoding call, converting each of them to UTF-8
+     * in a scratch buffer reused for all of them, rather than allocating a string and a byte
+     * array per piece.
+     */
+    class PieceEncoder implements PreTokenizer.PieceConsumer {
+        private final IntConsumer result;
+        byte[] buffer = new byte[64];
+        int length;
+        long tokenCount;
+
+        PieceEncoder(IntConsumer result) {
+            this.result = result;
+        }
+
+        @Override
+        public void accept(CharSequence text, int start, int end) {
+            length = toUtf8(text, start, end);
+            tokenCount += encodePiece(buffer, 0, length, result);
+        }
+
+        /**
+         * Accepts the special token found at the given range of text.
+         */
+        void acceptSpecial(int token, int start, int end) {
+            result.accept(token);
+            tokenCount++;
+        }
+
+        /**
+         * Writes the given range of text to the buffer in UTF-8, replacing unpaired surrogates
+         * with {@code '?'} just like {@link String#getBytes(java.nio.charset.Charset)} does.
+         */
+        private int toUtf8(CharSequence text, int start, int end) {
+            if (buffer.length < 3 * (end - start))
+                buffer = new byte[Math.max(3 * (end - start), 2 * buffer.length)];
+
+            byte[] buf = buffer;
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    buf[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[n++] = (byte) (0xC0 | (c >> 6));
+                    buf[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    char d;
+                    if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(d = text.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, d);
+                        buf[n++] = (byte) (0xF0 | (cp >> 18));
+                        buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buf[n++] = (byte) (0x80 | (cp & 0x3F));
+                        i++;
+                    } else {
+                        buf[n++] = '?';
                     }
-                    startFind = startMatch + 1;
                 } else {
-                    nextSpecial = null;
-                    break;
+                    buf[n++] = (byte) (0xE0 | (c >> 12));
+                    buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[n++] = (byte) (0x80 | (c & 0x3F));
                 }
             }
-            int end = (nextSpecial != null)? (start + nextSpecial.start()) : text.length();
-
-            // Tokenize the text using the regular expression
-            Matcher matcher = regex.matcher(text.subSequence(start, end));
-            while (matcher.find()) {
-                ByteSequence piece = ByteSequence.from(matcher.group());
-                Integer token = encoder.get(piece);
-                if (token != null) {
-                    lastPieceTokenLen = 1;
-                    ret.add(token);
-                } else {
-                    lastPieceTokenLen = bytePairMerge(piece, ret);
+            return n;
+        }
+    }
+
+    /**
+     * Encodes pieces like {@link PieceEncoder}, additionally recording the range of text each
+     * token came from. The ranges are derived from the byte lengths of tokens, mapped back to
+     * the characters of each piece, and so cost nothing in the merging of byte pairs.
+     */
+    private final class OffsetsEncoder extends PieceEncoder {
+        private final TokenArray tokens;
+        private final TokenArray starts;
+        private final TokenArray ends;
+        /** The start and end indexes of the characters each byte of the current piece belongs to. */
+        private int[] charStarts = new int[64], charEnds = new int[64];
+
+        OffsetsEncoder(TokenArray tokens, int expectedSize) {
+            super(tokens);
+            this.tokens = tokens;
+            this.starts = new TokenArray(expectedSize);
+            this.ends = new TokenArray(expectedSize);
+        }
+
+        @Override
+        public void accept(CharSequence text, int start, int end) {
+            int first = tokens.size();
+            super.accept(text, start, end);
+            if (length == end - start) {
+                // Every character is a single byte
+                for (int i = first, position = start; i < tokens.size(); i++) {
+                    starts.add(position);
+                    position += vocabulary.length(tokens.get(i));
+                    ends.add(position);
                 }
+                return;
+            }
+            if (charStarts.length < length) {
+                charStarts = new int[buffer.length];
+                charEnds = new int[buffer.length];
             }
 
-            // Add the special token if one was found
-            if (nextSpecial != null) {
-                String piece = nextSpecial.group();
-                Integer token = specialTokensEncoder.get(piece);
-                ret.add(token);
-                start += nextSpecial.end();
-                lastPieceTokenLen = 0;
-            } else {
-                break;
+            // Map each byte to its character, counting supplementary characters as two chars
+            for (int i = 0, c = start; i < length; ) {
+                int lead = buffer[i] & 0xFF;
+                int byteCount = (lead < 0xC0)? 1 : (lead < 0xE0)? 2 : (lead < 0xF0)? 3 : 4;
+                int charCount = (byteCount == 4)? 2 : 1;
+                for (int j = i + byteCount; i < j; i++) {
+                    charStarts[i] = c;
+                    charEnds[i] = c + charCount;
+                }
+                c += charCount;
+            }
+
+            for (int i = first, position = 0; i < tokens.size(); i++) {
+                int tokenLength = vocabulary.length(tokens.get(i));
+                starts.add(charStarts[position]);
+                ends.add(charEnds[position + tokenLength - 1]);
+                position += tokenLength;
             }
         }
 
-        // lastPieceTokenLen is how many tokens came from the last regex split. This is used
-        // for determining unstable tokens, since you can't merge across (stable) regex splits
-        return ret;
-    }
+        @Override
+        void acceptSpecial(int token, int start, int end) {
+            super.acceptSpecial(token, start, end);
+            starts.add(start);
+            ends.add(end);
+        }
 
-    private static class IntPair {
-        // Simple data structure for representing a pair of indices into a byte sequence
-        int start, end;
-        IntPair(int start, int end) {
-            this.start = start;
-            this.end = end;
+        TokensWithOffsets toResult() {
+            return new TokensWithOffsets(tokens.toArray(), starts.toArray(), ends.toArray());
         }
     }
 
-    protected int getRank(ByteSequence piece, List<IntPair> partsList, int startIdx) {
-        if (startIdx + 2 < partsList.size()) {
-            ByteSequence bytes = piece.subSequence(partsList.get(startIdx).start, partsList.get(startIdx + 2).start);
-            Integer rank = encoder.get(bytes);
-            return (rank != null)? rank : Integer.MAX_VALUE;
+    private int getRank(byte[] piece, int[] starts, int partCount, int startIdx) {
+        if (startIdx + 2 < partCount) {
+            int start = starts[startIdx];
+            return vocabulary.rank(piece, start, starts[startIdx + 2] - start);
         } else {
-            return Integer.MAX_VALUE;
+            return Vocabulary.NO_RANK;
         }
-    };
+    }
 
-    protected int bytePairMerge(ByteSequence piece, Collection<Integer> result) {
-        List<IntPair> parts = new ArrayList<>(piece.length() + 1);
-        for (int i = 0; i <= piece.length(); i++) {
-            parts.add(new IntPair(i, Integer.MAX_VALUE));
+    protected int bytePairMerge(byte[] piece, int offset, int length, IntConsumer result) {
+        if (length > LARGE_PIECE_THRESHOLD)
+            return bytePairMergeLarge(piece, offset, length, result);
+
+        int partCount = length + 1;
+        int[] starts = new int[partCount];
+        int[] ranks = new int[partCount];
+        for (int i = 0; i < partCount; i++) {
+            starts[i] = offset + i;
+            ranks[i] = Vocabulary.NO_RANK;
         }
 
-        for (int i = 0; i < parts.size() - 2; i++) {
-            int rank = getRank(piece, parts, i);
-            if (rank != Integer.MAX_VALUE) {
-                parts.get(i).end = rank;
-            }
+        for (int i = 0; i < partCount - 2; i++) {
+            ranks[i] = getRank(piece, starts, partCount, i);
         }
 
-        while (parts.size() > 1) {
-            int minRank = Integer.MAX_VALUE;
+        while (partCount > 1) {
+            int minRank = Vocabulary.NO_RANK;
             int minIndex = -1;
-            for (int i = 0; i < parts.size() - 1; i++) {
-                int rank = parts.get(i).end;
+            for (int i = 0; i < partCount - 1; i++) {
+                int rank = ranks[i];
                 if (rank < minRank) {
                     minRank = rank;
                     minIndex = i;
                 }
             }
-            if (minRank == Integer.MAX_VALUE) {
+            if (minRank == Vocabulary.NO_RANK) {
                 break;
             }
-            parts.remove(minIndex + 1);
-            parts.get(minIndex).end = getRank(piece, parts, minIndex);
+            System.arraycopy(starts, minIndex + 2, starts, minIndex + 1, partCount - minIndex - 2);
+            System.arraycopy(ranks, minIndex + 2, ranks, minIndex + 1, partCount - minIndex - 2);
+            partCount--;
+            ranks[minIndex] = getRank(piece, starts, partCount, minIndex);
             if (minIndex > 0) {
-                parts.get(minIndex - 1).end = getRank(piece, parts, minIndex - 1);
+                ranks[minIndex - 1] = getRank(piece, starts, partCount, minIndex - 1);
+            }
+        }
+
+        if (result != DISCARD) {
+            for (int i = 0; i < partCount - 1; i++) {
+                result.accept(vocabulary.rank(piece, starts[i], starts[i + 1] - starts[i]));
+            }
+        }
+        return partCount - 1;
+    }
+
+    /**
+     * Merges the byte pairs of a long piece in O(n log n) time, producing the same tokens as
+     * the linear scan done by {@link #bytePairMerge(byte[], int, int, IntConsumer)}.
+     * <p>
+     * Parts are kept in a doubly-linked list indexed by their starting byte offset, and the
+     * candidate merges in a min-heap ordered by rank, then by offset, so that ties are resolved
+     * leftmost-first as in the linear scan. Heap entries made stale by a previous merge are
+     * discarded lazily when polled.</p>
+     */
+    private int bytePairMergeLarge(byte[] piece, int offset, int length, IntConsumer result) {
+        int[] next = new int[length];
+        int[] prev = new int[length];
+        int[] ranks = new int[length];
+        long[] heap = new long[3 * length];
+        int heapSize = 0;
+
+        for (int i = 0; i < length; i++) {
+            next[i] = i + 1;
+            prev[i] = i - 1;
+            ranks[i] = (i + 2 <= length)? vocabulary.rank(piece, offset + i, 2) : Vocabulary.NO_RANK;
+            if (ranks[i] != Vocabulary.NO_RANK)
+                heapSize = heapPush(heap, heapSize, ranks[i], i);
+        }
+
+        while (heapSize > 0) {
+            long top = heap[0];
+            heapSize = heapPoll(heap, heapSize);
+            int rank = (int) (top >>> 32);
+            int start = (int) top;
+            if (ranks[start] != rank)
+                continue; // stale entry
+
+            // Merge the part at `start` with its successor
+            int removed = next[start];
+            int following = next[removed];
+            next[start] = following;
+            if (following < length)
+                prev[following] = start;
+            ranks[removed] = Vocabulary.NO_RANK;
+
+            ranks[start] = (following < length)? vocabulary.rank(piece, offset + start, next[following] - start) : Vocabulary.NO_RANK;
+            if (ranks[start] != Vocabulary.NO_RANK)
+                heapSize = heapPush(heap, heapSize, ranks[start], start);
+
+            int before = prev[start];
+            if (before >= 0) {
+                ranks[before] = vocabulary.rank(piece, offset + before, following - before);
+                if (ranks[before] != Vocabulary.NO_RANK)
+                    heapSize = heapPush(heap, heapSize, ranks[before], before);
             }
         }
 
         int resultCount = 0;
-        for (int i = 0; i < parts.size() - 1; i++) {
-            IntPair range = new IntPair(parts.get(i).start, parts.get(i + 1).start);
-            result.add(encoder.get(piece.subSequence(range.start, range.end)));
+        for (int i = 0; i < length; i = next[i]) {
+            if (result != DISCARD)
+                result.accept(vocabulary.rank(piece, offset + i, next[i] - i));
             resultCount++;
         }
-
         return resultCount;
     }
+
+    private static int heapPush(long[] heap, int size, int rank, int start) {
+        long key = ((long) rank << 32) | start;
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+        return size + 1;
+    }
+
+    private static int heapPoll(long[] heap, int size) {
+        long key = heap[--size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if (key <= heap[child])
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+        return size;
+    }
 }
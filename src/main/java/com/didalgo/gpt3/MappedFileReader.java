@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.function.LongConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the UTF-8 text of a file by decoding it straight from memory-mapped segments, rather
+ * than through an intermediate heap buffer.
+ * <p>
+ * A file can't be mapped as a whole if it's larger than 2 GB, so it's mapped in consecutive
+ * segments of at most {@link #SEGMENT_SIZE} bytes. Each segment starts at the first byte not
+ * consumed by the decoder, so that UTF-8 sequences straddling the end of a segment are decoded
+ * from the beginning of the next one. Malformed input is replaced with the {@code U+FFFD}
+ * character.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class MappedFileReader extends Reader {
+
+    /** The maximum number of bytes mapped at once. */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int segmentSize;
+    private final LongConsumer progress;
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private boolean flushed;
+
+    /**
+     * Opens the given file for reading.
+     *
+     * @param file        the file to read
+     * @param segmentSize the maximum number of bytes mapped at once
+     * @param progress    the consumer of the number of bytes decoded so far, called after each
+     *                    read
+     * @throws IOException if an I/O error occurs
+     */
+    MappedFileReader(Path file, int segmentSize, LongConsumer progress) throws IOException {
+        if (segmentSize < 4)
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.segmentSize = segmentSize;
+        this.progress = progress;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, cbuf.length);
+        if (len == 0)
+            return 0;
+        if (flushed)
+            return -1;
+
+        var out = CharBuffer.wrap(cbuf, off, len);
+        while (out.position() == off && !flushed) {
+            if (segment == null || !segment.hasRemaining() && segmentStart + segment.limit() < size)
+                mapNext();
+
+            boolean lastSegment = (segmentStart + segment.limit() == size);
+            CoderResult result = decoder.decode(segment, out, lastSegment);
+            if (result.isUnderflow()) {
+                if (lastSegment)
+                    flushed = decoder.flush(out).isUnderflow();
+                else if (segment.hasRemaining())
+                    mapNext(); // the segment ends with an incomplete UTF-8 sequence
+            }
+        }
+        progress.accept(segmentStart + segment.position());
+        return (out.position() == off)? -1 : out.position() - off;
+    }
+
+    private void mapNext() throws IOException {
+        long position = (segment == null)? 0 : segmentStart + segment.position();
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+        segmentStart = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -4,9 +4,6 @@
  */
 package com.didalgo.gpt3;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -120,29 +117,18 @@ public enum ModelType {
 		return Optional.empty();
 	}
 
-	private static final class Cache {
-
-		private static final Map<ModelType, SoftReference<GPT3Tokenizer>> gptTokenizersCache = Collections.synchronizedMap(new EnumMap<>(ModelType.class));
-
-		private static GPT3Tokenizer getTokenizer(ModelType model) {
-			GPT3Tokenizer tokenizer;
-			SoftReference<GPT3Tokenizer> ref = Cache.gptTokenizersCache.get(model);
-			if (ref == null || (tokenizer = ref.get()) == null) {
-				synchronized (gptTokenizersCache) {
-					Cache.gptTokenizersCache.put(model, new SoftReference<>(tokenizer = new GPT3Tokenizer(model.getEncoding())));
-				}
-			}
-
-			return tokenizer;
-		}
-	}
-
 	public Encoding getEncoding() {
 		return Encoding.forName(encodingType().encodingName());
 	}
 
+	/**
+	 * Returns a tokenizer for this model. Tokenizers are cheap, as all of them share the
+	 * {@link CompiledEncoding} of their encoding, retained as governed by its policy.
+	 *
+	 * @return the tokenizer
+	 */
 	public GPT3Tokenizer getTokenizer() {
-		return Cache.getTokenizer(this);
+		return new GPT3Tokenizer(CompiledEncoding.of(getEncoding()));
 	}
 
 	/**
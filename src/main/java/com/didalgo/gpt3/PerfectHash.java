@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A minimal perfect hash function over a fixed set of byte sequences, mapping each of them to
+ * a distinct position in {@code [0, size())}.
+ * <p>
+ * The function follows the "hash and displace" scheme of PTHash: keys are hashed into small
+ * buckets, and each bucket gets a pilot value, found at construction time, which displaces
+ * all keys of the bucket into free slots of a table slightly larger than the key set. Slots
+ * beyond the key count are finally remapped onto the holes left below it, making the function
+ * minimal. Evaluating the function takes one key hash, one pilot read and, rarely, one remap
+ * read, and never probes.</p>
+ * <p>
+ * Byte sequences outside of the key set are mapped to arbitrary positions, so callers need to
+ * verify the key found at the returned position.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class PerfectHash {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    /** The average number of keys per bucket. */
+    private static final double BUCKET_SIZE = 4.0;
+    /** The ratio of keys to table slots. */
+    private static final double LOAD_FACTOR = 0.97;
+    private static final int MAX_PILOT = 1 << 20;
+    private static final int MAX_ATTEMPTS = 32;
+
+    private final long seed;
+    private final int size;
+    private final int tableSize;
+    private final int[] pilots;
+    private final int[] remap;
+
+    private PerfectHash(long seed, int size, int tableSize, int[] pilots, int[] remap) {
+        this.seed = seed;
+        this.size = size;
+        this.tableSize = tableSize;
+        this.pilots = pilots;
+        this.remap = remap;
+    }
+
+    /**
+     * Builds the function over the byte sequences stored back-to-back in the given array,
+     * skipping empty ones.
+     *
+     * @param bytes   the concatenated byte sequences
+     * @param offsets the offsets into {@code bytes}, where the sequence {@code i} occupies
+     *                {@code [offsets[i], offsets[i+1])}
+     * @return the minimal perfect hash function
+     * @throws IllegalArgumentException if the byte sequences aren't distinct
+     */
+    static PerfectHash build(byte[] bytes, int[] offsets) {
+        int size = 0;
+        for (int i = 0; i < offsets.length - 1; i++)
+            if (offsets[i + 1] > offsets[i])
+                size++;
+
+        int tableSize = Math.max(size, (int) Math.ceil(size / LOAD_FACTOR));
+        int bucketCount = Math.max(1, (int) Math.ceil(size / BUCKET_SIZE));
+        long[] hashes = new long[size];
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long seed = mix(0x2545F4914F6CDD1DL + attempt);
+            for (int i = 0, k = 0; i < offsets.length - 1; i++)
+                if (offsets[i + 1] > offsets[i])
+                    hashes[k++] = hash(seed, bytes, offsets[i], offsets[i + 1] - offsets[i]);
+
+            if (hasDuplicates(hashes))
+                continue;
+            var hash = tryBuild(seed, hashes, tableSize, bucketCount);
+            if (hash != null)
+                return hash;
+        }
+        throw new IllegalArgumentException("Unable to build perfect hash function, the keys are probably not distinct");
+    }
+
+    private static boolean hasDuplicates(long[] hashes) {
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] == sorted[i - 1])
+                return true;
+        return false;
+    }
+
+    private static PerfectHash tryBuild(long seed, long[] hashes, int tableSize, int bucketCount) {
+        int size = hashes.length;
+
+        // Group keys by bucket, in the order of decreasing bucket size
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (long h : hashes)
+            bucketStarts[bucketOf(h, bucketCount) + 1]++;
+        int maxBucketSize = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStarts[b + 1]);
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+        long[] keys = new long[size];
+        int[] fill = Arrays.copyOf(bucketStarts, bucketCount);
+        for (long h : hashes)
+            keys[fill[bucketOf(h, bucketCount)]++] = h;
+
+        int[] order = new int[bucketCount];
+        int[] sizeStarts = new int[maxBucketSize + 2];
+        for (int b = 0; b < bucketCount; b++)
+            sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b]) + 1]++;
+        for (int s = 0; s <= maxBucketSize; s++)
+            sizeStarts[s + 1] += sizeStarts[s];
+        for (int b = 0; b < bucketCount; b++)
+            order[sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b])]++] = b;
+
+        // Find the pilot of each bucket, displacing all its keys into free slots
+        int[] pilots = new int[bucketCount];
+        var taken = new BitSet(tableSize);
+        int[] slots = new int[maxBucketSize];
+        for (int b : order) {
+            int from = bucketStarts[b], to = bucketStarts[b + 1];
+            if (from == to)
+                continue;
+
+            int pilot = 0;
+            search:
+            for (; pilot < MAX_PILOT; pilot++) {
+                for (int k = from; k < to; k++) {
+                    int slot = slotOf(keys[k], pilot, tableSize);
+                    if (taken.get(slot))
+                        continue search;
+                    for (int j = 0; j < k - from; j++)
+                        if (slots[j] == slot)
+                            continue search;
+                    slots[k - from] = slot;
+                }
+                break;
+            }
+            if (pilot == MAX_PILOT)
+                return null; // most likely a hash collision, retry with another seed
+
+            pilots[b] = pilot;
+            for (int k = 0; k < to - from; k++)
+                taken.set(slots[k]);
+        }
+
+        // Remap slots beyond the key count onto the holes below it
+        int[] remap = new int[tableSize - size];
+        int hole = taken.nextClearBit(0);
+        for (int slot = taken.nextSetBit(size); slot >= 0; slot = taken.nextSetBit(slot + 1)) {
+            remap[slot - size] = hole;
+            hole = taken.nextClearBit(hole + 1);
+        }
+        return new PerfectHash(seed, size, tableSize, pilots, remap);
+    }
+
+    /**
+     * Returns the position of the byte sequence occupying the given range of the array.
+     *
+     * @param buf    the array holding the byte sequence
+     * @param offset the offset of the first byte of the sequence
+     * @param length the number of bytes in the sequence
+     * @return the position in {@code [0, size())}, distinct for every key of this function
+     */
+    int position(byte[] buf, int offset, int length) {
+        long h = hash(seed, buf, offset, length);
+        int slot = slotOf(h, pilots[bucketOf(h, pilots.length)], tableSize);
+        return (slot < size)? slot : remap[slot - size];
+    }
+
+    /**
+     * Returns the number of keys of this function.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes taken by this function in the binary form.
+     */
+    int byteSize() {
+        return 20 + 4 * pilots.length + 4 * remap.length;
+    }
+
+    /**
+     * Writes this function in the binary form readable by {@link #readFrom(ByteBuffer)},
+     * taking {@link #byteSize()} bytes of the buffer.
+     *
+     * @param buffer the buffer to write to
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(seed)
+                .putInt(size)
+                .putInt(tableSize)
+                .putInt(pilots.length);
+        for (int pilot : pilots)
+            buffer.putInt(pilot);
+        for (int slot : remap)
+            buffer.putInt(slot);
+    }
+
+    /**
+     * Reads the function written by {@link #writeTo(ByteBuffer)}, advancing the buffer past it.
+     *
+     * @param buffer the buffer to read from
+     * @return the minimal perfect hash function
+     * @throws IOException if the data is malformed
+     * @throws java.nio.BufferUnderflowException if the data is truncated
+     */
+    static PerfectHash readFrom(ByteBuffer buffer) throws IOException {
+        long seed = buffer.getLong();
+        int size = buffer.getInt();
+        int tableSize = buffer.getInt();
+        int bucketCount = buffer.getInt();
+        if (size < 0 || tableSize < size || bucketCount <= 0
+                || 4L * bucketCount + 4L * (tableSize - size) > buffer.remaining())
+            throw new IOException("Malformed perfect hash function");
+
+        int[] pilots = new int[bucketCount];
+        buffer.asIntBuffer().get(pilots);
+        buffer.position(buffer.position() + 4 * bucketCount);
+        int[] remap = new int[tableSize - size];
+        buffer.asIntBuffer().get(remap);
+        buffer.position(buffer.position() + 4 * remap.length);
+        for (int slot : remap)
+            if (slot < 0 || slot >= Math.max(1, size))
+                throw new IOException("Malformed perfect hash function");
+        return new PerfectHash(seed, size, tableSize, pilots, remap);
+    }
+
+    private static int bucketOf(long hash, int bucketCount) {
+        return (int) (((hash >>> 32) * bucketCount) >>> 32);
+    }
+
+    private static int slotOf(long hash, int pilot, int tableSize) {
+        long h = mix(hash ^ (pilot * 0x9E3779B97F4A7C15L));
+        return (int) (((h & 0xFFFFFFFFL) * tableSize) >>> 32);
+    }
+
+    static long hash(long seed, byte[] buf, int offset, int length) {
+        long h = seed ^ (length * 0x9E3779B97F4A7C15L);
+        int i = offset, end = offset + length;
+        for (; i + 8 <= end; i += 8)
+            h = Long.rotateLeft((h ^ (long) LONGS.get(buf, i)) * 0xC2B2AE3D27D4EB4FL, 31);
+        if (i < end) {
+            long word = 0L;
+            for (int j = end - 1; j >= i; j--)
+                word = (word << 8) | (buf[j] & 0xFF);
+            h = Long.rotateLeft((h ^ word) * 0xC2B2AE3D27D4EB4FL, 31);
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
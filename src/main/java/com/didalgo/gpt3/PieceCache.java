@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe cache of encoded pieces, mapping the UTF-8 bytes of a piece to its
+ * tokens.
+ * <p>
+ * The cache is split into independently locked segments, selected by the hash of the piece,
+ * so that concurrent encoding threads rarely contend for the same lock. Each segment holds
+ * a fixed number of entries and, when full, evicts them in CLOCK order: entries accessed
+ * since the last sweep of the clock hand get a second chance, so frequently repeated pieces
+ * tend to stay cached. Lookups are keyed by a range of an arbitrary byte array and don't
+ * allocate.</p>
+ * <p>
+ * Token arrays stored in and returned by the cache are shared and must not be modified.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class PieceCache {
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Creates an empty cache holding at most the specified number of pieces.
+     *
+     * @param maximumSize the maximum number of cached pieces
+     * @throws IllegalArgumentException if the specified size is not positive
+     */
+    public PieceCache(int maximumSize) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("Illegal maximum size: " + maximumSize);
+
+        int segmentCount = Integer.highestOneBit(Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors() * 4, maximumSize / 64)));
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            int capacity = maximumSize / segmentCount + ((i < maximumSize % segmentCount)? 1 : 0);
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * Returns the cached tokens of the piece occupying the given range of the array.
+     *
+     * @param buf    the array holding the UTF-8 bytes of the piece
+     * @param offset the offset of the first byte of the piece
+     * @param length the number of bytes in the piece
+     * @return the tokens of the piece, or {@code null} if the piece isn't cached
+     */
+    public int[] get(byte[] buf, int offset, int length) {
+        int hash = hash(buf, offset, length);
+        int[] tokens = segmentFor(hash).get(hash, buf, offset, length);
+        (tokens != null? hitCount : missCount).increment();
+        return tokens;
+    }
+
+    /**
+     * Caches the tokens of the piece occupying the given range of the array, possibly
+     * evicting another piece. Does nothing if the piece is already cached.
+     *
+     * @param buf    the array holding the UTF-8 bytes of the piece, which are copied
+     * @param offset the offset of the first byte of the piece
+     * @param length the number of bytes in the piece
+     * @param tokens the tokens of the piece, which mustn't be modified afterwards
+     */
+    public void put(byte[] buf, int offset, int length, int[] tokens) {
+        int hash = hash(buf, offset, length);
+        if (segmentFor(hash).put(hash, buf, offset, length, tokens))
+            evictionCount.increment();
+    }
+
+    /**
+     * Returns the number of pieces currently in this cache.
+     *
+     * @return the cache size
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    /**
+     * Removes all pieces from this cache. The statistics are retained.
+     */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this cache.
+     *
+     * @return the cache statistics
+     */
+    public Stats stats() {
+        return new Stats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+    }
+
+    /**
+     * The cumulative statistics of a {@link PieceCache}.
+     *
+     * @param hitCount      the number of lookups which found the piece
+     * @param missCount     the number of lookups which didn't find the piece
+     * @param evictionCount the number of pieces evicted to make room for others
+     */
+    public record Stats(long hitCount, long missCount, long evictionCount) {
+
+        /**
+         * Returns the ratio of lookups which found the piece, or {@code 0.0} if there were
+         * no lookups.
+         *
+         * @return the hit rate
+         */
+        public double hitRate() {
+            long requestCount = hitCount + missCount;
+            return (requestCount == 0)? 0.0 : (double) hitCount / requestCount;
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return (segmentShift == 32)? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(byte[] buf, int offset, int length) {
+        int h = 0x811C9DC5 ^ length;
+        for (int i = offset, end = offset + length; i < end; i++)
+            h = (h ^ buf[i]) * 0x01000193;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The fixed-capacity part of the cache, guarded by its own monitor. Entries occupy slots
+     * which are indexed by an open-addressing hash table.
+     */
+    private static final class Segment {
+        private final byte[][] keys;
+        private final int[][] values;
+        private final int[] hashes;
+        private final boolean[] referenced;
+        /** The hash table, holding {@code slot + 1} of each entry, or {@code 0} if empty. */
+        private final int[] index;
+        private int size;
+        private int hand;
+
+        Segment(int capacity) {
+            this.keys = new byte[capacity][];
+            this.values = new int[capacity][];
+            this.hashes = new int[capacity];
+            this.referenced = new boolean[capacity];
+            this.index = new int[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1];
+        }
+
+        synchronized int[] get(int hash, byte[] buf, int offset, int length) {
+            int slot = find(hash, buf, offset, length);
+            if (slot < 0)
+                return null;
+            referenced[slot] = true;
+            return values[slot];
+        }
+
+        /** Returns {@code true} if an entry was evicted. */
+        synchronized boolean put(int hash, byte[] buf, int offset, int length, int[] tokens) {
+            if (find(hash, buf, offset, length) >= 0)
+                return false;
+
+            boolean evicted = false;
+            int slot;
+            if (size < keys.length) {
+                slot = size++;
+            } else {
+                // Sweep the clock hand, giving a second chance to recently used entries
+                while (referenced[hand]) {
+                    referenced[hand] = false;
+                    hand = (hand + 1) % keys.length;
+                }
+                slot = hand;
+                hand = (hand + 1) % keys.length;
+                unlink(slot);
+                evicted = true;
+            }
+            keys[slot] = Arrays.copyOfRange(buf, offset, offset + length);
+            values[slot] = tokens;
+            hashes[slot] = hash;
+            referenced[slot] = false;
+
+            int mask = index.length - 1;
+            int i = hash & mask;
+            while (index[i] != 0)
+                i = (i + 1) & mask;
+            index[i] = slot + 1;
+            return evicted;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+            Arrays.fill(referenced, false);
+            Arrays.fill(index, 0);
+            size = 0;
+            hand = 0;
+        }
+
+        private int find(int hash, byte[] buf, int offset, int length) {
+            int mask = index.length - 1;
+            for (int i = hash & mask; index[i] != 0; i = (i + 1) & mask) {
+                int slot = index[i] - 1;
+                if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, buf, offset, offset + length))
+                    return slot;
+            }
+            return -1;
+        }
+
+        /** Removes the given slot from the hash table, shifting back the entries following it. */
+        private void unlink(int slot) {
+            int mask = index.length - 1;
+            int i = hashes[slot] & mask;
+            while (index[i] != slot + 1)
+                i = (i + 1) & mask;
+
+            for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+                int home = hashes[index[j] - 1] & mask;
+                // Move the entry at j into the hole at i, unless its home lies cyclically in (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    index[i] = index[j];
+                    i = j;
+                }
+            }
+            index[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits text into pieces, which are then encoded into tokens independently of each other.
+ * <p>
+ * Pre-tokenization is defined by the regular expression of the {@link Encoding}, however the
+ * bundled encodings are split by dedicated scanners, which produce the same pieces without
+ * the overhead of the regex engine.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public interface PreTokenizer {
+
+    /**
+     * Splits the given range of text into pieces.
+     *
+     * @param text     the text to split
+     * @param start    the beginning index of the range, inclusive
+     * @param end      the ending index of the range, exclusive
+     * @param consumer the receiver of consecutive pieces
+     */
+    void split(CharSequence text, int start, int end, PieceConsumer consumer);
+
+    /**
+     * Receives the pieces found by a {@link PreTokenizer}.
+     */
+    @FunctionalInterface
+    interface PieceConsumer {
+        /**
+         * Accepts the piece of text occupying the given range.
+         *
+         * @param text  the text being split
+         * @param start the beginning index of the piece, inclusive
+         * @param end   the ending index of the piece, exclusive
+         */
+        void accept(CharSequence text, int start, int end);
+    }
+
+    /**
+     * Returns the pre-tokenizer splitting text into pieces matched by the given pattern.
+     * <p>
+     * The dedicated scanner is returned for any of the patterns used by the bundled encodings,
+     * and the regex-based pre-tokenizer otherwise.</p>
+     *
+     * @param pattern the pattern matching consecutive pieces
+     * @return the pre-tokenizer
+     */
+    static PreTokenizer forPattern(Pattern pattern) {
+        PreTokenizer scanner = BuiltInPreTokenizers.forPattern(pattern);
+        return (scanner != null)? scanner : new Of(pattern);
+    }
+
+    /**
+     * The pre-tokenizer driven by a regular expression.
+     */
+    record Of(Pattern pattern) implements PreTokenizer {
+
+        @Override
+        public void split(CharSequence text, int start, int end, PieceConsumer consumer) {
+            Matcher matcher = pattern.matcher(text).region(start, end);
+            while (matcher.find()) {
+                consumer.accept(text, matcher.start(), matcher.end());
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.*;
+
+/**
+ * Finds occurrences of special tokens in text, using an Aho-Corasick automaton compiled into a
+ * dense transition table.
+ * <p>
+ * The automaton runs directly over the given {@code CharSequence}, without copying any part of
+ * it, and reports the leftmost occurrence of any special token. If several special tokens start
+ * at the same position, the longest one is reported.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class SpecialTokenMatcher {
+
+    private final String[] tokens;
+    private final int[] tokenIds;
+    /** Distinct characters of all special tokens, sorted. */
+    private final char[] alphabet;
+    /** Symbol indexes of ASCII characters, where {@code 0} stands for any character outside of the alphabet. */
+    private final int[] asciiSymbols = new int[128];
+    /** The transition table, indexed by {@code state * (alphabet.length + 1) + symbol}. */
+    private final int[] transitions;
+    /** The length of the text matched by each state. */
+    private final int[] depths;
+    /** The longest special token (as an index into {@link #tokens}) ending at each state, or {@code -1}. */
+    private final int[] outputs;
+
+    SpecialTokenMatcher(Map<String, Integer> specialTokens) {
+        int count = specialTokens.size();
+        this.tokens = specialTokens.keySet().toArray(new String[0]);
+        Arrays.sort(tokens);
+        this.tokenIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (tokens[i].isEmpty())
+                throw new IllegalArgumentException("Empty special token");
+            tokenIds[i] = specialTokens.get(tokens[i]);
+        }
+
+        var chars = new TreeSet<Character>();
+        for (String token : tokens)
+            for (char c : token.toCharArray())
+                chars.add(c);
+        this.alphabet = new char[chars.size()];
+        int symbol = 0;
+        for (char c : chars) {
+            alphabet[symbol++] = c;
+            if (c < asciiSymbols.length)
+                asciiSymbols[c] = symbol;
+        }
+        int stride = alphabet.length + 1;
+
+        // Build the trie
+        var children = new ArrayList<int[]>();
+        var depthList = new ArrayList<Integer>();
+        var outputList = new ArrayList<Integer>();
+        children.add(new int[stride]);
+        depthList.add(0);
+        outputList.add(-1);
+        for (int i = 0; i < count; i++) {
+            int state = 0;
+            for (char c : tokens[i].toCharArray()) {
+                int s = symbolOf(c);
+                if (children.get(state)[s] == 0) {
+                    children.get(state)[s] = children.size();
+                    children.add(new int[stride]);
+                    depthList.add(depthList.get(state) + 1);
+                    outputList.add(-1);
+                }
+                state = children.get(state)[s];
+            }
+            outputList.set(state, i);
+        }
+
+        // Turn the trie into the automaton, following failure links in breadth-first order
+        int stateCount = children.size();
+        this.transitions = new int[stateCount * stride];
+        this.depths = new int[stateCount];
+        this.outputs = new int[stateCount];
+        int[] failures = new int[stateCount];
+        var queue = new ArrayDeque<Integer>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            depths[state] = depthList.get(state);
+            outputs[state] = (outputList.get(state) >= 0 || state == 0)? outputList.get(state) : outputs[failures[state]];
+            for (int s = 1; s < stride; s++) {
+                int child = children.get(state)[s];
+                if (child != 0) {
+                    failures[child] = (state == 0)? 0 : transitions[failures[state] * stride + s];
+                    transitions[state * stride + s] = child;
+                    queue.add(child);
+                } else {
+                    transitions[state * stride + s] = (state == 0)? 0 : transitions[failures[state] * stride + s];
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether there are no special tokens to find.
+     */
+    boolean isEmpty() {
+        return tokens.length == 0;
+    }
+
+    /**
+     * Finds the leftmost occurrence of a special token in the given range of text.
+     *
+     * @return the start index of the occurrence in the upper 32 bits and the index of the
+     *          special token in the lower 32 bits, or {@code -1} if there's no occurrence
+     */
+    long find(CharSequence text, int from, int to) {
+        int stride = alphabet.length + 1;
+        int state = 0;
+        int bestStart = -1, bestToken = -1;
+        for (int i = from; i < to; i++) {
+            state = transitions[state * stride + symbolOf(text.charAt(i))];
+            int token = outputs[state];
+            if (token >= 0) {
+                int start = i + 1 - tokens[token].length();
+                if (bestToken < 0 || start < bestStart || (start == bestStart && tokens[token].length() > tokens[bestToken].length())) {
+                    bestStart = start;
+                    bestToken = token;
+                }
+            }
+            // Stop when no partial match could start at or before the best one
+            if (bestToken >= 0 && depths[state] <= i - bestStart)
+                break;
+        }
+        return (bestToken < 0)? -1 : ((long) bestStart << 32) | bestToken;
+    }
+
+    /**
+     * Returns the text of the special token with the given index.
+     */
+    String token(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * Returns the id of the special token with the given index.
+     */
+    int tokenId(int index) {
+        return tokenIds[index];
+    }
+
+    private int symbolOf(char c) {
+        if (c < asciiSymbols.length)
+            return asciiSymbols[c];
+        int index = Arrays.binarySearch(alphabet, c);
+        return (index < 0)? 0 : index + 1;
+    }
+}
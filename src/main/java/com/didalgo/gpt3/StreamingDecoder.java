@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes a stream of tokens incrementally, e.g. as they arrive one by one from a streamed
+ * completion, emitting only complete characters.
+ * <p>
+ * A character may be split across tokens at the byte level, so the trailing bytes of a token
+ * starting an incomplete UTF-8 sequence are held back, in a buffer of at most 3 bytes, until
+ * the tokens completing it arrive. Each token is thus decoded once, in time proportional to its
+ * own length, and the concatenation of all emitted strings, followed by {@link #flush()}, is
+ * exactly the same as {@link GPT3Tokenizer#decode(List) decoding} all the tokens at once,
+ * including the replacement of malformed byte sequences.</p>
+ * <p>
+ * Instances are obtained from {@link GPT3Tokenizer#newStreamingDecoder()} and are not safe
+ * for use by multiple concurrent threads.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class StreamingDecoder {
+
+    private final TokenDecoder decoder;
+    private final byte[] pending = new byte[3];
+    private int pendingLength;
+
+    StreamingDecoder(TokenDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Decodes the given token, following the tokens decoded so far.
+     *
+     * @param token the token
+     * @return the characters completed by the token, possibly empty
+     * @throws IllegalArgumentException if the token is unknown
+     */
+    public String decode(int token) {
+        byte[] buf = new byte[pendingLength + decoder.length(token)];
+        System.arraycopy(pending, 0, buf, 0, pendingLength);
+        decoder.copy(token, buf, pendingLength);
+        return emit(buf, 0, buf.length);
+    }
+
+    /**
+     * Decodes the given tokens, following the tokens decoded so far.
+     *
+     * @param tokens the tokens
+     * @return the characters completed by the tokens, possibly empty
+     * @throws IllegalArgumentException if any of the tokens is unknown, in which case none
+     *          of them is decoded
+     */
+    public String decode(int... tokens) {
+        int length = pendingLength;
+        for (int token : tokens)
+            length += decoder.length(token);
+
+        byte[] buf = new byte[length];
+        int position = pendingLength;
+        System.arraycopy(pending, 0, buf, 0, pendingLength);
+        for (int token : tokens)
+            position = decoder.copy(token, buf, position);
+        return emit(buf, 0, length);
+    }
+
+    /**
+     * Decodes the given tokens, following the tokens decoded so far.
+     *
+     * @param tokens the tokens
+     * @return the characters completed by the tokens, possibly empty
+     * @throws IllegalArgumentException if any of the tokens is unknown, in which case none
+     *          of them is decoded
+     */
+    public String decode(List<Integer> tokens) {
+        int length = pendingLength;
+        for (int token : tokens)
+            length += decoder.length(token);
+
+        byte[] buf = new byte[length];
+        int position = pendingLength;
+        System.arraycopy(pending, 0, buf, 0, pendingLength);
+        for (int token : tokens)
+            position = decoder.copy(token, buf, position);
+        return emit(buf, 0, length);
+    }
+
+    /**
+     * Ends the stream, emitting the bytes held back, if any, as replacement characters, and
+     * makes this decoder ready for a new stream.
+     *
+     * @return the replacement characters of the incomplete trailing byte sequence, possibly
+     *          empty
+     */
+    public String flush() {
+        String result = new String(pending, 0, pendingLength, UTF_8);
+        pendingLength = 0;
+        return result;
+    }
+
+    /**
+     * Discards the bytes held back, if any, making this decoder ready for a new stream.
+     */
+    public void reset() {
+        pendingLength = 0;
+    }
+
+    /**
+     * Returns the number of bytes held back, waiting for the tokens to complete their
+     * character.
+     *
+     * @return the number of pending bytes, between 0 and 3
+     */
+    public int pendingBytes() {
+        return pendingLength;
+    }
+
+    private String emit(byte[] buf, int from, int to) {
+        int end = completeEnd(buf, from, to);
+        pendingLength = to - end;
+        System.arraycopy(buf, end, pending, 0, pendingLength);
+        return new String(buf, from, end - from, UTF_8);
+    }
+
+    /**
+     * Returns the end of the given byte range, excluding its trailing incomplete, but so far
+     * well-formed, UTF-8 sequence, if any.
+     */
+    private static int completeEnd(byte[] buf, int from, int to) {
+        for (int i = to - 1; i >= Math.max(from, to - 3); i--) {
+            int lead = buf[i] & 0xFF;
+            if ((lead & 0xC0) != 0x80)
+                return (to - i < sequenceLength(lead) && isWellFormedPrefix(buf, i, to))? i : to;
+        }
+        return to;
+    }
+
+    private static int sequenceLength(int lead) {
+        if (lead >= 0xC2 && lead <= 0xDF)
+            return 2;
+        if (lead >= 0xE0 && lead <= 0xEF)
+            return 3;
+        if (lead >= 0xF0 && lead <= 0xF4)
+            return 4;
+        return 1;
+    }
+
+    private static boolean isWellFormedPrefix(byte[] buf, int start, int end) {
+        int lead = buf[start] & 0xFF;
+        for (int i = start + 1; i < end; i++) {
+            int b = buf[i] & 0xFF;
+            int min = 0x80, max = 0xBF;
+            if (i == start + 1) {
+                // The second byte excludes overlong forms, surrogates and code points above U+10FFFF
+                switch (lead) {
+                    case 0xE0 -> min = 0xA0;
+                    case 0xED -> max = 0x9F;
+                    case 0xF0 -> min = 0x90;
+                    case 0xF4 -> max = 0x8F;
+                }
+            }
+            if (b < min || b > max)
+                return false;
+        }
+        return true;
+    }
+}
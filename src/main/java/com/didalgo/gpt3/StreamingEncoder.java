@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes text read from a stream, in fixed-size windows, so that inputs of any size can be
+ * encoded without loading them into memory as a whole.
+ * <p>
+ * Each window is split into pieces by the pattern of the encoding, and only the pieces known
+ * to be complete are encoded, i.e. those matched without the regex engine reaching the end of
+ * the window. The trailing, possibly unfinished pieces are held back and matched again together
+ * with the next window, so the tokens are exactly the same as those of
+ * {@link GPT3Tokenizer#encode(CharSequence) encoding} the whole text at once. The memory used
+ * is bounded by the window size, unless a single piece, e.g. a run of whitespace, is longer
+ * than the window, in which case the window grows to hold it.</p>
+ * <p>
+ * Files are read by decoding their memory-mapped content, without loading it into memory,
+ * so that files of any size, including those larger than 2 GB, can be encoded or just
+ * {@link #countTokens(Path) counted}.</p>
+ * <p>
+ * Special tokens aren't recognized in the streamed text, and are encoded like any other text.
+ * Instances are obtained from {@link GPT3Tokenizer#newStreamingEncoder()} and are safe for use
+ * by multiple concurrent threads, each encoding its own stream.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class StreamingEncoder {
+
+    /** The default number of characters read at once. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    private final GPT3Tokenizer tokenizer;
+    private final Pattern pattern;
+    private final int windowSize;
+
+    StreamingEncoder(GPT3Tokenizer tokenizer, int windowSize) {
+        if (windowSize < 2)
+            throw new IllegalArgumentException("Window size too small: " + windowSize);
+        this.tokenizer = tokenizer;
+        this.pattern = tokenizer.getCompiledEncoding().pattern();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Returns the number of characters read at once.
+     *
+     * @return the window size
+     */
+    public int windowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Encodes the text read from the given reader until its end, passing each consecutive
+     * token id to the given sink. The reader is not closed.
+     *
+     * @param in   the reader of text to encode
+     * @param sink the consumer of token ids, e.g. a {@link TokenArray}
+     * @throws IOException if an I/O error occurs
+     */
+    public void encode(Reader in, IntConsumer sink) throws IOException {
+        encode(in, tokenizer.newPieceEncoder(sink));
+    }
+
+    private void encode(Reader in, PreTokenizer.PieceConsumer pieceEncoder) throws IOException {
+        var window = new Window(in, pieceEncoder);
+        while (window.advance())
+            ;
+    }
+
+    /**
+     * Encodes the UTF-8 text read from the given stream until its end, passing each
+     * consecutive token id to the given sink. Malformed input is replaced with the
+     * {@code U+FFFD} character. The stream is not closed.
+     *
+     * @param in   the stream of text to encode
+     * @param sink the consumer of token ids, e.g. a {@link TokenArray}
+     * @throws IOException if an I/O error occurs
+     */
+    public void encode(InputStream in, IntConsumer sink) throws IOException {
+        encode(new InputStreamReader(in, UTF_8), sink);
+    }
+
+    /**
+     * Encodes the UTF-8 text read from the given channel until its end, passing each
+     * consecutive token id to the given sink. Malformed input is replaced with the
+     * {@code U+FFFD} character. The channel is not closed.
+     *
+     * @param in   the channel of text to encode
+     * @param sink the consumer of token ids, e.g. a {@link TokenArray}
+     * @throws IOException if an I/O error occurs
+     */
+    public void encode(ReadableByteChannel in, IntConsumer sink) throws IOException {
+        encode(Channels.newInputStream(in), sink);
+    }
+
+    /**
+     * Encodes the UTF-8 text of the given file, passing each consecutive token id to the given
+     * sink. The file is decoded straight from memory-mapped segments, each of at most 1 GB.
+     *
+     * @param file     the file to encode
+     * @param sink     the consumer of token ids
+     * @param progress the consumer of the number of bytes of the file read so far, called
+     *                 as the file is read
+     * @throws IOException if an I/O error occurs
+     */
+    public void encode(Path file, IntConsumer sink, LongConsumer progress) throws IOException {
+        try (var in = new MappedFileReader(file, MappedFileReader.SEGMENT_SIZE, progress)) {
+            encode(in, sink);
+        }
+    }
+
+    /**
+     * Counts the tokens of the UTF-8 text of the given file, memory-mapped like in
+     * {@link #encode(Path, IntConsumer, LongConsumer)}.
+     *
+     * @param file the file to count the tokens of
+     * @return the number of tokens
+     * @throws IOException if an I/O error occurs
+     */
+    public long countTokens(Path file) throws IOException {
+        return countTokens(file, bytesRead -> { });
+    }
+
+    /**
+     * Counts the tokens of the UTF-8 text of the given file, memory-mapped like in
+     * {@link #encode(Path, IntConsumer, LongConsumer)}, reporting the progress on the way.
+     *
+     * @param file     the file to count the tokens of
+     * @param progress the consumer of the number of bytes of the file read so far, called
+     *                 as the file is read
+     * @return the number of tokens
+     * @throws IOException if an I/O error occurs
+     */
+    public long countTokens(Path file, LongConsumer progress) throws IOException {
+        var counter = tokenizer.newPieceCounter();
+        try (var in = new MappedFileReader(file, MappedFileReader.SEGMENT_SIZE, progress)) {
+            encode(in, counter);
+        }
+        return counter.tokenCount;
+    }
+
+    /**
+     * Encodes the UTF-8 text of the given file, memory-mapped like in
+     * {@link #encode(Path, IntConsumer, LongConsumer)}, and writes the token ids to the
+     * given token file, as consecutive 32-bit little-endian integers. The token file is
+     * created, or overwritten if it exists.
+     *
+     * @param file      the file to encode
+     * @param tokenFile the file to write the token ids to
+     * @param progress  the consumer of the number of bytes of the file read so far, called
+     *                  as the file is read
+     * @return the number of tokens written
+     * @throws IOException if an I/O error occurs
+     */
+    public long encodeToFile(Path file, Path tokenFile, LongConsumer progress) throws IOException {
+        try (var out = FileChannel.open(tokenFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var writer = new TokenWriter(out);
+            encode(file, writer, progress);
+            writer.flush();
+            return writer.count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns an iterator over the token ids of the text read from the given reader, reading
+     * and encoding a window of text whenever the tokens of the previous one are exhausted.
+     * I/O errors are thrown as {@link UncheckedIOException} from the iterator methods. The
+     * reader is not closed.
+     *
+     * @param in the reader of text to encode
+     * @return the iterator of token ids
+     */
+    public PrimitiveIterator.OfInt tokens(Reader in) {
+        var tokens = new TokenArray();
+        var window = new Window(in, tokenizer.newPieceEncoder(tokens));
+        return new PrimitiveIterator.OfInt() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (index == tokens.size()) {
+                        tokens.clear();
+                        index = 0;
+                        if (!window.advance())
+                            return false;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return tokens.get(index++);
+            }
+        };
+    }
+
+    /**
+     * Writes token ids to a channel through a buffer, as 32-bit little-endian integers.
+     */
+    private static final class TokenWriter implements IntConsumer {
+        private final WritableByteChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long count;
+
+        TokenWriter(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public void accept(int token) {
+            if (buffer.remaining() < Integer.BYTES) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            buffer.putInt(token);
+            count++;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * The text read so far and not yet encoded, of a single stream.
+     */
+    private final class Window {
+        private final Reader in;
+        private final PreTokenizer.PieceConsumer pieceEncoder;
+        private char[] buffer = new char[windowSize];
+        private int length;
+        private boolean finished;
+
+        Window(Reader in, PreTokenizer.PieceConsumer pieceEncoder) {
+            this.in = in;
+            this.pieceEncoder = pieceEncoder;
+        }
+
+        /**
+         * Reads the next window of text and encodes its complete pieces.
+         *
+         * @return {@code false} if the end of the stream had already been reached
+         */
+        boolean advance() throws IOException {
+            if (finished)
+                return false;
+
+            int count = 0;
+            while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) >= 0)
+                length += count;
+            boolean endOfInput = (count < 0);
+
+            // Never split a surrogate pair
+            int end = length;
+            if (!endOfInput && Character.isHighSurrogate(buffer[end - 1]))
+                end--;
+
+            var text = CharBuffer.wrap(buffer, 0, end);
+            Matcher matcher = pattern.matcher(text);
+            int encoded = 0;
+            while (matcher.find()) {
+                if (!endOfInput && matcher.hitEnd())
+                    break;
+                pieceEncoder.accept(text, matcher.start(), matcher.end());
+                encoded = matcher.end();
+            }
+
+            if (endOfInput) {
+                finished = true;
+                length = 0;
+            } else if (encoded == 0 && length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            } else {
+                System.arraycopy(buffer, encoded, buffer, 0, length - encoded);
+                length -= encoded;
+            }
+            return true;
+        }
+    }
+}
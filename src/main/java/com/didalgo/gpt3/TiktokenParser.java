@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Parses vocabularies in the text ({@code .tiktoken}) format, holding a base64-encoded byte
+ * sequence followed by a space and its rank on each line.
+ * <p>
+ * The input is split into line-aligned chunks, which are decoded in parallel on the common
+ * fork-join pool. The decoded chunks are then merged, in input order, into the rank-ordered
+ * table of a {@link Vocabulary}, so the result and any reported error don't depend on the
+ * scheduling of the chunks. Duplicate ranks and duplicate byte sequences are rejected.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class TiktokenParser {
+
+    /** The minimum number of input bytes worth decoding in a separate chunk. */
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+
+    private TiktokenParser() { }
+
+    /**
+     * Parses the vocabulary from the given content of a {@code .tiktoken} file.
+     *
+     * @param data the file content
+     * @return the vocabulary
+     * @throws IllegalArgumentException if the content is malformed or holds duplicate ranks
+     *          or byte sequences
+     */
+    static Vocabulary parse(byte[] data) {
+        int chunkCount = Math.max(1, Math.min(data.length / MIN_CHUNK_SIZE,
+                Runtime.getRuntime().availableProcessors() * 4));
+        int[] bounds = new int[chunkCount + 1];
+        for (int i = 1; i < chunkCount; i++) {
+            int bound = Math.max(bounds[i - 1], (int) ((long) data.length * i / chunkCount));
+            while (bound < data.length && data[bound - 1] != '\n')
+                bound++;
+            bounds[i] = bound;
+        }
+        bounds[chunkCount] = data.length;
+
+        Chunk[] chunks = IntStream.range(0, chunkCount).parallel()
+                .mapToObj(i -> new Chunk(data, bounds[i], bounds[i + 1]))
+                .toArray(Chunk[]::new);
+
+        // Report the first error in input order
+        int maxRank = -1, size = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.error != null)
+                throw new IllegalArgumentException(chunk.error);
+            maxRank = Math.max(maxRank, chunk.maxRank);
+            size += chunk.count;
+        }
+
+        int[] offsets = new int[maxRank + 2];
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk.count; i++) {
+                int rank = chunk.ranks[i];
+                if (offsets[rank + 1] != 0)
+                    throw new IllegalArgumentException("Duplicate rank: " + rank);
+                offsets[rank + 1] = chunk.ends[i + 1] - chunk.ends[i];
+            }
+        }
+        for (int rank = 0; rank <= maxRank; rank++)
+            offsets[rank + 1] += offsets[rank];
+
+        byte[] bytes = new byte[offsets[maxRank + 1]];
+        for (Chunk chunk : chunks)
+            for (int i = 0; i < chunk.count; i++)
+                System.arraycopy(chunk.bytes, chunk.ends[i], bytes, offsets[chunk.ranks[i]], chunk.ends[i + 1] - chunk.ends[i]);
+        return Vocabulary.create(bytes, offsets, size);
+    }
+
+    /**
+     * The decoded byte sequences and ranks of a range of lines.
+     */
+    private static final class Chunk {
+        byte[] bytes;
+        int[] ends;
+        int[] ranks;
+        int count;
+        int maxRank = -1;
+        String error;
+
+        Chunk(byte[] data, int from, int to) {
+            this.bytes = new byte[(to - from) / 4 * 3 + 3];
+            this.ranks = new int[Math.max(16, (to - from) / 8)];
+            this.ends = new int[ranks.length + 1];
+            int length = 0;
+            for (int start = from; start < to; ) {
+                int end = start;
+                while (end < to && data[end] != '\n')
+                    end++;
+                int lineEnd = (end > start && data[end - 1] == '\r')? end - 1 : end;
+                if (lineEnd > start) {
+                    if (count == ranks.length) {
+                        ranks = Arrays.copyOf(ranks, ranks.length * 2);
+                        ends = Arrays.copyOf(ends, ranks.length + 1);
+                    }
+                    length = decodeLine(data, start, lineEnd, length);
+                    if (length < 0) {
+                        error = "Malformed line at offset " + start + ": "
+                                + new String(data, start, Math.min(lineEnd - start, 80), StandardCharsets.ISO_8859_1);
+                        return;
+                    }
+                }
+                start = end + 1;
+            }
+        }
+
+        /** Decodes the line into the next entry, returning the new length of decoded bytes, or {@code -1} if malformed. */
+        private int decodeLine(byte[] data, int start, int end, int length) {
+            int space = start;
+            while (space < end && data[space] != ' ')
+                space++;
+            int digits = end - space - 1;
+            if (space == start || (space - start) % 4 != 0 || digits <= 0 || digits > 10)
+                return -1;
+
+            long rank = 0;
+            for (int i = space + 1; i < end; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9)
+                    return -1;
+                rank = rank * 10 + digit;
+            }
+            if (rank > Integer.MAX_VALUE - 2)
+                return -1;
+
+            int padding = (data[space - 1] == '=')? ((data[space - 2] == '=')? 2 : 1) : 0;
+            for (int i = start; i < space; i += 4) {
+                int quantum = 0;
+                for (int j = i; j < i + 4; j++) {
+                    int c = data[j];
+                    int value = (c >= 0 && c < BASE64_VALUES.length)? BASE64_VALUES[c] : -1;
+                    if (value < 0 && !(c == '=' && j >= space - padding))
+                        return -1;
+                    quantum = (quantum << 6) | Math.max(value, 0);
+                }
+                bytes[length++] = (byte) (quantum >> 16);
+                bytes[length++] = (byte) (quantum >> 8);
+                bytes[length++] = (byte) quantum;
+            }
+            length -= padding;
+            if (length == ends[count])
+                return -1; // empty byte sequence
+
+            ranks[count++] = (int) rank;
+            ends[count] = length;
+            maxRank = Math.max(maxRank, (int) rank);
+            return length;
+        }
+    }
+}
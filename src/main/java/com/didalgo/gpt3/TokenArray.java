@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A growable array of primitive token ids.
+ * <p>
+ * Serves as the primary output of the primitive encoding API of {@link GPT3Tokenizer},
+ * allowing token ids to be collected without boxing them into {@code Integer} objects.
+ * Instances of this class are not thread-safe.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class TokenArray implements IntConsumer {
+
+    private static final int[] EMPTY_TOKENS = new int[0];
+
+    private int[] tokens;
+    private int size;
+
+    /**
+     * Creates an empty token array.
+     */
+    public TokenArray() {
+        this(10);
+    }
+
+    /**
+     * Creates an empty token array with the specified initial capacity.
+     *
+     * @param initialCapacity the initial capacity of the array
+     * @throws IllegalArgumentException if the specified capacity is negative
+     */
+    public TokenArray(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal capacity: " + initialCapacity);
+        this.tokens = (initialCapacity == 0)? EMPTY_TOKENS : new int[initialCapacity];
+    }
+
+    /**
+     * Appends the specified token to the end of this array.
+     *
+     * @param token the token id to append
+     */
+    public void add(int token) {
+        if (size == tokens.length)
+            tokens = Arrays.copyOf(tokens, Math.max(10, size + (size >> 1)));
+        tokens[size++] = token;
+    }
+
+    /**
+     * Appends the specified token to the end of this array.
+     * Equivalent to {@link #add(int)}.
+     *
+     * @param token the token id to append
+     */
+    @Override
+    public void accept(int token) {
+        add(token);
+    }
+
+    /**
+     * Returns the token at the specified position.
+     *
+     * @param index the zero-based position of the token (0 &lt;= index &lt; size())
+     * @return the token id at the specified position
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range (0 <= index < " + size + ")");
+        return tokens[index];
+    }
+
+    /**
+     * Returns the number of tokens in this array.
+     *
+     * @return the number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether this array contains no tokens.
+     *
+     * @return {@code true} if the array is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all tokens from this array, retaining its current capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns a copy of the tokens in this array, trimmed to its size.
+     *
+     * @return a newly allocated array of token ids
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(tokens, size);
+    }
+
+    /**
+     * Returns the tokens in this array as a new, modifiable list of boxed integers.
+     *
+     * @return a newly allocated list of token ids
+     */
+    public List<Integer> toList() {
+        var list = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            list.add(tokens[i]);
+        return list;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < size; i++)
+            result = 31 * result + tokens[i];
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof TokenArray other) {
+            return Arrays.equals(tokens, 0, size, other.tokens, 0, other.size);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
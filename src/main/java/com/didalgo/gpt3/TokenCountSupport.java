@@ -34,7 +34,7 @@ public class TokenCountSupport {
     private static final FunctionDocumenter standardDocumenter = new StandardFunctionDocumenter();
 
     public int countTokensFromString(String text, GPT3Tokenizer tokenizer) {
-        return tokenizer.encode(text).size();
+        return tokenizer.countTokens(text);
     }
 
     public <T_MSG, T_TOOL> int countTokensFromMessages(
@@ -60,7 +60,7 @@ public class TokenCountSupport {
 
             var role = tokenizable.role();
             if (role != null && !role.isEmpty())
-                tokenCount += tokenizer.encode(role).size();
+                tokenCount += tokenizer.countTokens(role);
 
             var content = tokenizable.content();
             if (content != null && role != null && index == 0 && "system".equals(role.toString())) {
@@ -68,12 +68,12 @@ public class TokenCountSupport {
                 toolsPrompt = "";
             }
             if (content != null)
-                tokenCount += tokenizer.encode(content).size();
+                tokenCount += tokenizer.countTokens(content);
 
             var functionCall = tokenizable.functionCall();
             if (functionCall.isPresent()) {
-                tokenCount += tokenizer.encode(functionCall.name()).size();
-                tokenCount += tokenizer.encode(functionCall.arguments()).size();
+                tokenCount += tokenizer.countTokens(functionCall.name());
+                tokenCount += tokenizer.countTokens(functionCall.arguments());
                 tokenCount += chatFormat.extraTokenCountPerFunctionCall();
             }
         }
@@ -82,8 +82,8 @@ public class TokenCountSupport {
         if (!tools.isEmpty()) {
             if (!toolsPrompt.isEmpty()) {
                 tokenCount += chatFormat.extraTokenCountPerMessage();
-                tokenCount += tokenizer.encode("system").size();
-                tokenCount += tokenizer.encode(toolsPrompt).size();
+                tokenCount += tokenizer.countTokens("system");
+                tokenCount += tokenizer.countTokens(toolsPrompt);
             }
             tokenCount += chatFormat.extraTokenCountForFunctions();
         }
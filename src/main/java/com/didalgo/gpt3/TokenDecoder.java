@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes tokens into bytes, indexing the arrays of the vocabulary by token id.
+ * <p>
+ * The token with id {@code t} occupies {@code [offsets[t], offsets[t+1])} of the array of all
+ * byte sequences of the {@link Vocabulary}, which is used in place rather than copied. Special
+ * tokens, possibly filling holes in the ranks, are kept in a small side table of their own,
+ * looked up first. Decoding takes two passes over the tokens: one summing up their lengths, to
+ * presize the result, and another one copying their bytes into it.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class TokenDecoder {
+
+    /** The maximum number of bytes passed at once through the charset decoder when decoding into text. */
+    private static final int CHUNK_SIZE = 8192;
+
+    private final byte[] bytes;
+    private final int[] offsets;
+    /** The ids of the special tokens, in ascending order. */
+    private final int[] specialIds;
+    /** The bytes of the special tokens, where the {@code i}-th occupies {@code [specialOffsets[i], specialOffsets[i+1])}. */
+    private final byte[] specialBytes;
+    private final int[] specialOffsets;
+    private final int minSpecialId;
+    private final int maxSpecialId;
+
+    /**
+     * Creates the decoder of the tokens of the given vocabulary and special tokens.
+     *
+     * @param vocabulary    the vocabulary
+     * @param specialTokens the ids of the special tokens
+     * @throws IllegalArgumentException if a special token has a negative id or an id taken
+     *          by another token
+     */
+    TokenDecoder(Vocabulary vocabulary, Map<String, Integer> specialTokens) {
+        var specials = specialTokens.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .toList();
+        this.bytes = vocabulary.bytes();
+        this.offsets = vocabulary.offsets();
+        this.specialIds = new int[specials.size()];
+        this.specialOffsets = new int[specials.size() + 1];
+        var encodedSpecials = new byte[specials.size()][];
+        for (int i = 0; i < specials.size(); i++) {
+            int id = specials.get(i).getValue();
+            if (id < 0)
+                throw new IllegalArgumentException("Invalid special token id: " + id);
+            if (vocabulary.contains(id) || i > 0 && specialIds[i - 1] == id)
+                throw new IllegalArgumentException("Duplicate token id: " + id);
+            specialIds[i] = id;
+            encodedSpecials[i] = specials.get(i).getKey().getBytes(UTF_8);
+            specialOffsets[i + 1] = specialOffsets[i] + encodedSpecials[i].length;
+        }
+        this.specialBytes = new byte[specialOffsets[specials.size()]];
+        for (int i = 0; i < specials.size(); i++)
+            System.arraycopy(encodedSpecials[i], 0, specialBytes, specialOffsets[i], encodedSpecials[i].length);
+        this.minSpecialId = specials.isEmpty()? Integer.MAX_VALUE : specialIds[0];
+        this.maxSpecialId = specials.isEmpty()? Integer.MIN_VALUE : specialIds[specials.size() - 1];
+    }
+
+    /**
+     * Returns the number of bytes the given token decodes to.
+     *
+     * @throws IllegalArgumentException if the token is unknown
+     */
+    int length(int token) {
+        int special = specialIndex(token);
+        if (special >= 0)
+            return specialOffsets[special + 1] - specialOffsets[special];
+        if (token < 0 || token >= offsets.length - 1 || offsets[token + 1] == offsets[token])
+            throw new IllegalArgumentException("Unknown token: " + token);
+        return offsets[token + 1] - offsets[token];
+    }
+
+    /**
+     * Copies the bytes of the given token, which must be known, into the array.
+     *
+     * @return the position in the array following the bytes copied
+     */
+    int copy(int token, byte[] dst, int position) {
+        int special = specialIndex(token);
+        if (special >= 0) {
+            int start = specialOffsets[special], length = specialOffsets[special + 1] - start;
+            System.arraycopy(specialBytes, start, dst, position, length);
+            return position + length;
+        }
+        int start = offsets[token], length = offsets[token + 1] - start;
+        System.arraycopy(bytes, start, dst, position, length);
+        return position + length;
+    }
+
+    /**
+     * Decodes the given tokens into bytes.
+     *
+     * @param tokens the tokens
+     * @return the concatenated bytes of the tokens
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    byte[] decode(List<Integer> tokens) {
+        int length = 0;
+        for (int token : tokens)
+            length += length(token);
+
+        byte[] result = new byte[length];
+        int position = 0;
+        for (int token : tokens)
+            position = copy(token, result, position);
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes the given range of tokens decodes to.
+     *
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws IndexOutOfBoundsException if the range is out of the array bounds
+     */
+    int length(int[] tokens, int from, int to) {
+        Objects.checkFromToIndex(from, to, tokens.length);
+        int length = 0;
+        for (int i = from; i < to; i++)
+            length += length(tokens[i]);
+        return length;
+    }
+
+    /**
+     * Decodes the given range of tokens into bytes.
+     *
+     * @param tokens the array of tokens
+     * @param from   the index of the first token to decode
+     * @param to     the index after the last token to decode
+     * @return the concatenated bytes of the tokens
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     */
+    byte[] decode(int[] tokens, int from, int to) {
+        byte[] result = new byte[length(tokens, from, to)];
+        int position = 0;
+        for (int i = from; i < to; i++)
+            position = copy(tokens[i], result, position);
+        return result;
+    }
+
+    /**
+     * Decodes the given range of tokens, putting their bytes straight into the given buffer.
+     * Nothing is put if the tokens are invalid or the buffer lacks space for their bytes.
+     *
+     * @return the number of bytes put
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws BufferOverflowException if the buffer has too little space remaining
+     */
+    int decode(int[] tokens, int from, int to, ByteBuffer dst) {
+        int length = length(tokens, from, to);
+        if (length > dst.remaining())
+            throw new BufferOverflowException();
+        for (int i = from; i < to; i++) {
+            int special = specialIndex(tokens[i]);
+            if (special >= 0)
+                dst.put(specialBytes, specialOffsets[special], specialOffsets[special + 1] - specialOffsets[special]);
+            else
+                dst.put(bytes, offsets[tokens[i]], offsets[tokens[i] + 1] - offsets[tokens[i]]);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the given range of tokens, writing their bytes straight to the given stream.
+     * Nothing is written if the tokens are invalid.
+     *
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws IOException if an I/O error occurs
+     */
+    void decode(int[] tokens, int from, int to, OutputStream out) throws IOException {
+        length(tokens, from, to);
+        for (int i = from; i < to; i++) {
+            int special = specialIndex(tokens[i]);
+            if (special >= 0)
+                out.write(specialBytes, specialOffsets[special], specialOffsets[special + 1] - specialOffsets[special]);
+            else
+                out.write(bytes, offsets[tokens[i]], offsets[tokens[i] + 1] - offsets[tokens[i]]);
+        }
+    }
+
+    /**
+     * Decodes the given range of tokens into text, appending it to the given sink. The bytes of
+     * the tokens are streamed from the vocabulary through a UTF-8 decoder, replacing malformed
+     * input, in chunks of a fixed size. The text is decoded straight into a {@link CharBuffer}
+     * sink with room for it, and through a reused chunk of chars into any other sink. Nothing
+     * is appended if the tokens are invalid.
+     *
+     * @throws IllegalArgumentException if any of the tokens is unknown
+     * @throws BufferOverflowException if the sink is a {@code CharBuffer} with too little space
+     *          remaining, in which case part of the text may already have been appended
+     * @throws IOException if the sink fails to append the text
+     */
+    void decode(int[] tokens, int from, int to, Appendable out) throws IOException {
+        int length = length(tokens, from, to);
+        CharsetDecoder charsetDecoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        var in = ByteBuffer.allocate(Math.max(1, Math.min(length, CHUNK_SIZE)));
+        // UTF-8 decodes to at most one char per byte, so decoding a chunk never overflows
+        var chars = (out instanceof CharBuffer buffer && buffer.remaining() >= length)? buffer : CharBuffer.allocate(in.capacity());
+        int i = from, position = 0;
+        do {
+            while (i < to && in.hasRemaining()) {
+                position = put(tokens[i], position, in);
+                if (in.hasRemaining()) {
+                    i++;
+                    position = 0;
+                }
+            }
+            in.flip();
+            charsetDecoder.decode(in, chars, i == to);
+            in.compact();
+            if (i == to)
+                charsetDecoder.flush(chars);
+            if (chars != out) {
+                out.append(chars.flip());
+                chars.clear();
+            }
+        } while (i < to);
+    }
+
+    /**
+     * Puts the bytes of the given known token, starting at the given position within them,
+     * into the buffer as far as they fit.
+     *
+     * @return the position within the bytes of the token following the bytes put
+     */
+    private int put(int token, int position, ByteBuffer dst) {
+        byte[] src = bytes;
+        int start, end;
+        int special = specialIndex(token);
+        if (special >= 0) {
+            src = specialBytes;
+            start = specialOffsets[special];
+            end = specialOffsets[special + 1];
+        } else {
+            start = offsets[token];
+            end = offsets[token + 1];
+        }
+        int count = Math.min(end - start - position, dst.remaining());
+        dst.put(src, start + position, count);
+        return position + count;
+    }
+
+    /**
+     * Returns the index of the given token in the side table of special tokens, or {@code -1}
+     * if it's not a special token.
+     */
+    private int specialIndex(int token) {
+        if (token < minSpecialId || token > maxSpecialId)
+            return -1;
+        return Math.max(Arrays.binarySearch(specialIds, token), -1);
+    }
+}
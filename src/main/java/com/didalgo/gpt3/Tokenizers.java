@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Utilities for getting tokenizers ready before they're first needed.
+ * <p>
+ * The first tokenizer of an encoding has to wait for its vocabulary to load and its
+ * {@link CompiledEncoding compiled form} to build, and its first calls run in the interpreter.
+ * Applications sensitive to first-request latency can {@link #preload(EncodingType...)} the
+ * encodings they use in the background, right at startup, optionally followed by a
+ * {@link #warmUp(GPT3Tokenizer) warm-up}, which pushes representative text through the hot
+ * paths of encoding, counting and decoding until they get compiled by the JIT.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class Tokenizers {
+
+    /** The default number of warm-up rounds, enough for the hot paths to reach the optimizing compiler. */
+    public static final int DEFAULT_WARM_UP_ROUNDS = 500;
+
+    private static final List<String> WARM_UP_TEXTS = List.of(
+            "The quick brown fox jumps over the lazy dog. It's 12:45 and we've got 3,141 items left!",
+            "  Leading spaces,\ttabs\tand\r\nline breaks\n\n\nare split   like everything else.  ",
+            "for (int i = 0; i < tokens.length; i++) {\n    sum += tokens[i] * 0x1F;\n}\n",
+            "{\"name\": \"gpt3-tokenizer\", \"version\": 3, \"tags\": [\"bpe\", \"tiktoken\"]}",
+            "Zażółć gęślą jaźń. Привет, как дела? 日本語のテキストも処理します。 مرحبا بالعالم",
+            "Emoji 😀🚀🎉 and symbols ™ © ∑ ≠ ≤ — keep the byte-level fallback busy: ÿþ€",
+            "supercalifragilisticexpialidocious antidisestablishmentarianism pneumonoultramicroscopic"
+    );
+
+    private Tokenizers() { }
+
+    /**
+     * Loads and compiles the given encodings in the background, on the common fork-join pool.
+     *
+     * @param encodingTypes the encodings to preload
+     * @return the future completed when all encodings are ready
+     */
+    public static CompletableFuture<Void> preload(EncodingType... encodingTypes) {
+        return preload(ForkJoinPool.commonPool(), encodingTypes);
+    }
+
+    /**
+     * Loads and compiles the given encodings in the background, each of them in a separate
+     * task of the given executor.
+     *
+     * @param executor      the executor running the loading tasks
+     * @param encodingTypes the encodings to preload
+     * @return the future completed when all encodings are ready, or completed exceptionally
+     *          if any of them failed to load
+     */
+    public static CompletableFuture<Void> preload(Executor executor, EncodingType... encodingTypes) {
+        return CompletableFuture.allOf(Arrays.stream(encodingTypes)
+                .map(encodingType -> CompletableFuture.runAsync(() -> compile(encodingType), executor))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Loads and compiles the given encodings in the background, and then {@link #warmUp(GPT3Tokenizer)
+     * warms up} a tokenizer of each of them, in separate tasks of the given executor.
+     *
+     * @param executor      the executor running the loading and warm-up tasks
+     * @param encodingTypes the encodings to preload
+     * @return the future completed when all encodings are ready and warmed up
+     */
+    public static CompletableFuture<Void> preloadAndWarmUp(Executor executor, EncodingType... encodingTypes) {
+        return CompletableFuture.allOf(Arrays.stream(encodingTypes)
+                .map(encodingType -> CompletableFuture.runAsync(() -> warmUp(new GPT3Tokenizer(compile(encodingType))), executor))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Warms up the given tokenizer with the {@link #DEFAULT_WARM_UP_ROUNDS default number} of
+     * rounds.
+     *
+     * @param tokenizer the tokenizer
+     */
+    public static void warmUp(GPT3Tokenizer tokenizer) {
+        warmUp(tokenizer, DEFAULT_WARM_UP_ROUNDS);
+    }
+
+    /**
+     * Pushes representative text through encoding, counting and decoding of the given
+     * tokenizer, for the given number of rounds. This warms up all tokenizers of the same
+     * encoding, and most of the code of other encodings, except their pre-tokenizers.
+     *
+     * @param tokenizer the tokenizer
+     * @param rounds    the number of rounds
+     * @throws IllegalStateException if the tokenizer doesn't round-trip the warm-up text
+     */
+    public static void warmUp(GPT3Tokenizer tokenizer, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (String text : WARM_UP_TEXTS) {
+                List<Integer> tokens = tokenizer.encode(text);
+                int[] array = tokenizer.encodeToArray(text);
+                if (tokenizer.countTokens(text) != array.length || !text.equals(tokenizer.decode(tokens)))
+                    throw new IllegalStateException("Tokenizer failed to round-trip the warm-up text: " + text);
+            }
+        }
+    }
+
+    private static CompiledEncoding compile(EncodingType encodingType) {
+        return CompiledEncoding.of(Encoding.forName(encodingType.encodingName()));
+    }
+}
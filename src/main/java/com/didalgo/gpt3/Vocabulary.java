@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * An immutable BPE vocabulary, mapping byte sequences to their ranks (token ids).
+ * <p>
+ * All byte sequences are stored back-to-back in a single array, ordered by rank. Lookups are
+ * keyed by a range of an arbitrary byte array, so no key objects need to be allocated, hashed
+ * or copied when probing the vocabulary. Single bytes are looked up directly in a 256-entry
+ * table, and longer sequences through a {@link PerfectHash minimal perfect hash function},
+ * which takes them in one probe, without collisions, to the only rank they may have.</p>
+ * <p>
+ * Vocabularies can be saved in a compact binary format, holding the byte sequences, their
+ * offsets and the perfect hash function, which loads with a few bulk transfers instead of
+ * parsing. The bundled encodings are compiled into this format at build time by the
+ * {@link VocabularyCompiler}; any other vocabulary gets its perfect hash function built on the
+ * fly.</p>
+ * <p>
+ * The vocabulary is the only storage of the mergeable ranks of an {@link Encoding}, which
+ * exposes them through the {@link #asMap() map view}, so that a loaded encoding takes a few
+ * large arrays instead of a map entry, a boxed rank and a byte array for each token.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+public final class Vocabulary {
+
+    /** The value returned by {@link #rank(byte[], int, int)} for byte sequences not in the vocabulary. */
+    public static final int NO_RANK = Integer.MAX_VALUE;
+
+    /**
+     * The first bytes of the binary format, {@code "TKV"} followed by the format version 1, in
+     * little-endian order. The version byte is a control character, never found in the text
+     * format, so that no {@code .tiktoken} file is mistaken for a binary one.
+     */
+    static final int BINARY_MAGIC = 0x01564B54;
+
+    /** The shared views of the vocabularies loaded from class path resources, by resource name. */
+    private static final ConcurrentMap<String, Map<ByteSequence, Integer>> resourceMaps = new ConcurrentHashMap<>();
+
+    /** Concatenated byte sequences of all tokens, in rank order. */
+    private final byte[] bytes;
+    /** The offsets into {@link #bytes}, where the token with rank {@code r} occupies {@code [offsets[r], offsets[r+1])}. */
+    private final int[] offsets;
+    /** The ranks of single-byte sequences, indexed by the unsigned byte value. */
+    private final int[] byteRanks = new int[256];
+    /** The perfect hash function of all byte sequences. */
+    private final PerfectHash hash;
+    /** The ranks of byte sequences, indexed by their perfect hash position. */
+    private final int[] positionRanks;
+    private final int size;
+
+    private Vocabulary(byte[] bytes, int[] offsets, int size, PerfectHash hash, int[] positionRanks) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.size = size;
+        this.hash = hash;
+        this.positionRanks = positionRanks;
+        Arrays.fill(byteRanks, NO_RANK);
+        for (int rank = 0; rank < offsets.length - 1; rank++)
+            if (offsets[rank + 1] - offsets[rank] == 1)
+                byteRanks[bytes[offsets[rank]] & 0xFF] = rank;
+    }
+
+    /**
+     * Creates the vocabulary of the byte sequences stored back-to-back in the given array, in
+     * rank order, where an empty sequence means there's no token with that rank.
+     *
+     * @throws IllegalArgumentException if the byte sequences aren't distinct
+     */
+    static Vocabulary create(byte[] bytes, int[] offsets, int size) {
+        PerfectHash hash;
+        try {
+            hash = PerfectHash.build(bytes, offsets);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Duplicate byte sequences", e);
+        }
+        int[] positionRanks = positionRanks(bytes, offsets, hash);
+        if (positionRanks == null)
+            throw new IllegalArgumentException("Duplicate byte sequences");
+        return new Vocabulary(bytes, offsets, size, hash, positionRanks);
+    }
+
+    /**
+     * Maps each position of the perfect hash function to the rank of the byte sequence it was
+     * given to, or returns {@code null} if the function isn't perfect for these sequences.
+     */
+    private static int[] positionRanks(byte[] bytes, int[] offsets, PerfectHash hash) {
+        int[] positionRanks = new int[hash.size()];
+        Arrays.fill(positionRanks, NO_RANK);
+        for (int rank = 0; rank < offsets.length - 1; rank++) {
+            int start = offsets[rank], length = offsets[rank + 1] - start;
+            if (length == 0)
+                continue; // no token with this rank
+
+            int position = hash.position(bytes, start, length);
+            if (positionRanks[position] != NO_RANK)
+                return null;
+            positionRanks[position] = rank;
+        }
+        return positionRanks;
+    }
+
+    /**
+     * Creates a vocabulary from the given map of byte sequences to their ranks. If the map is
+     * the {@link #asMap() view} of a vocabulary, that vocabulary is returned.
+     *
+     * @param mergeableRanks the ranks of the byte sequences
+     * @return the vocabulary
+     * @throws IllegalArgumentException if the map contains an empty byte sequence, a negative
+     *          rank or duplicate ranks
+     */
+    public static Vocabulary of(Map<ByteSequence, Integer> mergeableRanks) {
+        if (mergeableRanks instanceof RankMap view)
+            return view.vocabulary();
+
+        int maxRank = -1;
+        for (int rank : mergeableRanks.values()) {
+            if (rank < 0 || rank == NO_RANK)
+                throw new IllegalArgumentException("Invalid rank: " + rank);
+            maxRank = Math.max(maxRank, rank);
+        }
+
+        int[] lengths = new int[maxRank + 1];
+        for (var entry : mergeableRanks.entrySet()) {
+            int rank = entry.getValue();
+            if (lengths[rank] != 0)
+                throw new IllegalArgumentException("Duplicate rank: " + rank);
+            if (entry.getKey().length() == 0)
+                throw new IllegalArgumentException("Empty byte sequence for rank: " + rank);
+            lengths[rank] = entry.getKey().length();
+        }
+
+        int[] offsets = new int[maxRank + 2];
+        for (int rank = 0; rank <= maxRank; rank++)
+            offsets[rank + 1] = offsets[rank] + lengths[rank];
+
+        byte[] bytes = new byte[offsets[maxRank + 1]];
+        for (var entry : mergeableRanks.entrySet()) {
+            byte[] key = entry.getKey().toByteArray();
+            System.arraycopy(key, 0, bytes, offsets[entry.getValue()], key.length);
+        }
+        return create(bytes, offsets, mergeableRanks.size());
+    }
+
+    /**
+     * Loads the vocabulary from the given class path resource in the text ({@code .tiktoken})
+     * format, or from its binary form compiled at build time, if available.
+     *
+     * @param tiktokenFilename the name of the {@code .tiktoken} resource
+     * @return the vocabulary
+     * @throws UncheckedIOException if the resource is missing or unreadable
+     */
+    static Vocabulary forResource(String tiktokenFilename) {
+        var vocabulary = loadResource(VocabularyCompiler.binaryResourceName(tiktokenFilename));
+        if (vocabulary != null)
+            return vocabulary;
+
+        try (InputStream in = Vocabulary.class.getResourceAsStream(tiktokenFilename)) {
+            if (in == null)
+                throw new FileNotFoundException("Resource not found: " + tiktokenFilename);
+            return TiktokenParser.parse(in.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the vocabulary from the given binary class path resource, returning {@code null}
+     * if it's missing or unreadable, so that the vocabulary is built from the text format.
+     */
+    static Vocabulary loadResource(String resourceName) {
+        try (InputStream in = Vocabulary.class.getResourceAsStream(resourceName)) {
+            if (in != null)
+                return readFrom(in);
+        } catch (IOException e) {
+            // fall through
+        }
+        return null;
+    }
+
+    /**
+     * Reads the vocabulary from the given stream, in one bulk read, either in the binary or in
+     * the text ({@code .tiktoken}) format.
+     *
+     * @param in the input stream
+     * @return the vocabulary
+     * @throws IOException if an I/O error occurs or the vocabulary is malformed
+     */
+    public static Vocabulary readFrom(InputStream in) throws IOException {
+        return readFrom(ByteBuffer.wrap(in.readAllBytes()));
+    }
+
+    /**
+     * Loads the vocabulary from the given file, either in the binary format, whose mapped
+     * content is bulk-copied into heap arrays, or in the text ({@code .tiktoken}) format,
+     * holding a base64-encoded byte sequence followed by its rank on each line.
+     *
+     * @param file the file to load
+     * @return the vocabulary
+     * @throws IOException if an I/O error occurs or the file is malformed
+     */
+    public static Vocabulary load(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            if (header.position() == 4 && header.getInt(0) == BINARY_MAGIC)
+                return readBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        return readText(Files.readAllBytes(file));
+    }
+
+    /**
+     * Reads the vocabulary from the remaining content of the given buffer, either in the
+     * binary or in the text ({@code .tiktoken}) format. The buffer position isn't changed.
+     *
+     * @param buffer the buffer holding the vocabulary, e.g. a mapped file
+     * @return the vocabulary
+     * @throws IOException if the vocabulary is malformed
+     */
+    public static Vocabulary readFrom(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= 4 && buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position()) == BINARY_MAGIC)
+            return readBinary(buffer);
+
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return readText(data);
+    }
+
+    private static Vocabulary readText(byte[] data) throws IOException {
+        try {
+            return TiktokenParser.parse(data);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed vocabulary: " + e.getMessage(), e);
+        }
+    }
+
+    private static Vocabulary readBinary(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != BINARY_MAGIC)
+                throw new IOException("Not a binary vocabulary");
+            int rankCount = buffer.getInt();
+            int size = buffer.getInt();
+            int byteCount = buffer.getInt();
+            if (rankCount < 0 || size < 0 || size > rankCount || byteCount < 0
+                    || 4L * ((long) rankCount + 1) + byteCount + 4L * size > buffer.remaining())
+                throw new IOException("Malformed binary vocabulary");
+
+            int[] offsets = new int[rankCount + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + 4 * offsets.length);
+            for (int rank = 0; rank < rankCount; rank++)
+                if (offsets[rank] < 0 || offsets[rank] > offsets[rank + 1])
+                    throw new IOException("Malformed binary vocabulary");
+            if (offsets[0] != 0 || offsets[rankCount] != byteCount)
+                throw new IOException("Malformed binary vocabulary");
+
+            byte[] bytes = new byte[byteCount];
+            buffer.get(bytes);
+            buffer.position((buffer.position() + 3) & ~3);
+
+            var hash = PerfectHash.readFrom(buffer);
+            if (hash.size() != size)
+                throw new IOException("Malformed binary vocabulary");
+            int[] positionRanks = new int[size];
+            buffer.asIntBuffer().get(positionRanks);
+            for (int rank : positionRanks)
+                if (rank < 0 || rank >= rankCount || offsets[rank] == offsets[rank + 1])
+                    throw new IOException("Malformed binary vocabulary");
+
+            return new Vocabulary(bytes, offsets, size, hash, positionRanks);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated binary vocabulary", e);
+        }
+    }
+
+    /**
+     * Writes this vocabulary in the binary format, readable by {@link #readFrom(InputStream)}
+     * and {@link #load(Path)}.
+     *
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int bytesEnd = 16 + 4 * offsets.length + bytes.length;
+        int hashStart = (bytesEnd + 3) & ~3;
+        var buffer = ByteBuffer.allocate(hashStart + hash.byteSize() + 4 * positionRanks.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(BINARY_MAGIC)
+                .putInt(offsets.length - 1)
+                .putInt(size)
+                .putInt(bytes.length);
+        for (int offset : offsets)
+            buffer.putInt(offset);
+        buffer.put(bytes);
+        buffer.position(hashStart);
+        hash.writeTo(buffer);
+        for (int rank : positionRanks)
+            buffer.putInt(rank);
+        out.write(buffer.array());
+    }
+
+    /**
+     * Returns an unmodifiable map view of this vocabulary, mapping byte sequences to their
+     * ranks. Lookups in the view go through the vocabulary, while iteration creates the
+     * byte sequences on the fly.
+     *
+     * @return the map view
+     */
+    public Map<ByteSequence, Integer> asMap() {
+        return new RankMap(() -> this);
+    }
+
+    /**
+     * Returns the map view of the vocabulary of the given class path resource, loaded by
+     * {@link #forResource(String)} on the first access to the map. The view is shared by all
+     * callers asking for the same resource, so that encodings differing only in their special
+     * tokens or pattern share a single vocabulary. The view holds the vocabulary softly, leaving
+     * the strong references to the {@link CompiledEncoding}s using it, so that once these are
+     * unloaded the vocabulary can be reclaimed under memory pressure, to be loaded again on the
+     * next access to the view.
+     */
+    static Map<ByteSequence, Integer> resourceMap(String tiktokenFilename) {
+        return resourceMaps.computeIfAbsent(tiktokenFilename, name -> new RankMap(() -> forResource(name)));
+    }
+
+    /**
+     * Checks whether the given map is a view of a vocabulary, possibly not loaded yet.
+     */
+    static boolean isView(Map<?, ?> map) {
+        return map instanceof RankMap;
+    }
+
+    /**
+     * Returns the byte sequence with the given rank.
+     *
+     * @param rank the rank
+     * @return the byte sequence, or {@code null} if there's none with this rank
+     */
+    public ByteSequence bytes(int rank) {
+        if (!contains(rank))
+            return null;
+        return ByteSequence.of(Arrays.copyOfRange(bytes, offsets[rank], offsets[rank + 1]));
+    }
+
+    /**
+     * Returns the length of the byte sequence with the given rank, or {@code 0} if there's
+     * none with this rank.
+     */
+    int length(int rank) {
+        return contains(rank)? offsets[rank + 1] - offsets[rank] : 0;
+    }
+
+    /**
+     * Returns the array holding all byte sequences back-to-back, at the {@link #offsets()} of
+     * their ranks. The array is shared and must not be modified.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the offsets into {@link #bytes()}, where the byte sequence with rank {@code r}
+     * occupies {@code [offsets[r], offsets[r+1])}. The array is shared and must not be modified.
+     */
+    int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * Checks whether there's a byte sequence with the given rank in this vocabulary.
+     *
+     * @param rank the rank
+     * @return {@code true} if the rank is taken by a byte sequence
+     */
+    public boolean contains(int rank) {
+        return rank >= 0 && rank < offsets.length - 1 && offsets[rank + 1] > offsets[rank];
+    }
+
+    /**
+     * Returns the rank of the byte sequence occupying the given range of the array.
+     *
+     * @param buf    the array holding the byte sequence
+     * @param offset the offset of the first byte of the sequence
+     * @param length the number of bytes in the sequence
+     * @return the rank of the byte sequence, or {@link #NO_RANK} if it is not in this vocabulary
+     */
+    public int rank(byte[] buf, int offset, int length) {
+        if (length == 1)
+            return byteRanks[buf[offset] & 0xFF];
+        if (length == 0 || size == 0)
+            return NO_RANK;
+
+        int rank = positionRanks[hash.position(buf, offset, length)];
+        return equalsAt(rank, buf, offset, length)? rank : NO_RANK;
+    }
+
+    /**
+     * Returns the number of byte sequences in this vocabulary.
+     *
+     * @return the vocabulary size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate number of bytes of memory taken by this vocabulary, including
+     * its lookup tables, e.g. for sizing caches or containers.
+     *
+     * @return the memory footprint in bytes
+     */
+    public long memoryFootprint() {
+        return bytes.length + 4L * offsets.length + 4L * byteRanks.length
+                + 4L * positionRanks.length + hash.byteSize();
+    }
+
+    private boolean equalsAt(int rank, byte[] buf, int offset, int length) {
+        int start = offsets[rank];
+        return offsets[rank + 1] - start == length
+                && Arrays.equals(bytes, start, start + length, buf, offset, offset + length);
+    }
+
+    /**
+     * The map view of a vocabulary, possibly loaded on first access.
+     */
+    private static final class RankMap extends AbstractMap<ByteSequence, Integer> {
+        private final Supplier<Vocabulary> loader;
+        private volatile SoftReference<Vocabulary> vocabulary = new SoftReference<>(null);
+
+        RankMap(Supplier<Vocabulary> loader) {
+            this.loader = loader;
+        }
+
+        Vocabulary vocabulary() {
+            var result = vocabulary.get();
+            if (result == null) {
+                synchronized (this) {
+                    result = vocabulary.get();
+                    if (result == null)
+                        vocabulary = new SoftReference<>(result = loader.get());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int size() {
+            return vocabulary().size();
+        }
+
+        @Override
+        public Integer get(Object key) {
+            if (key instanceof ByteSequence sequence) {
+                byte[] buf = sequence.toByteArray();
+                int rank = vocabulary().rank(buf, 0, buf.length);
+                if (rank != NO_RANK)
+                    return rank;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<ByteSequence, Integer>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return RankMap.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<ByteSequence, Integer>> iterator() {
+                    var vocabulary = vocabulary();
+                    return new Iterator<>() {
+                        private int rank = next(0);
+
+                        private int next(int from) {
+                            while (from < vocabulary.offsets.length - 1 && !vocabulary.contains(from))
+                                from++;
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return rank < vocabulary.offsets.length - 1;
+                        }
+
+                        @Override
+                        public Entry<ByteSequence, Integer> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            var entry = Map.entry(vocabulary.bytes(rank), rank);
+                            rank = next(rank + 1);
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Compiles the bundled vocabularies into the binary format at build time.
+ * <p>
+ * Run by the {@code compileVocabularies} task of the Gradle build, with the output directory
+ * followed by the names of the {@code .tiktoken} resources as arguments. For each of them, the
+ * compiled vocabulary, including its perfect hash function, is written to the resource named by
+ * {@link #binaryResourceName(String)}, where {@link Vocabulary} looks for it at runtime. The
+ * compiler isn't part of the library API, so it's reachable only through the classes directory
+ * of the build.</p>
+ *
+ * @author Mariusz Bernacki
+ *
+ */
+final class VocabularyCompiler {
+
+    private VocabularyCompiler() { }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1)
+            throw new IllegalArgumentException("Usage: VocabularyCompiler <output-directory> <tiktoken-resource>...");
+        Path outputDirectory = Path.of(args[0]);
+        Files.createDirectories(outputDirectory);
+        for (String tiktokenFilename : Arrays.copyOfRange(args, 1, args.length)) {
+            Vocabulary vocabulary;
+            try (InputStream in = Vocabulary.class.getResourceAsStream(tiktokenFilename)) {
+                if (in == null)
+                    throw new FileNotFoundException("Resource not found: " + tiktokenFilename);
+                vocabulary = TiktokenParser.parse(in.readAllBytes());
+            }
+            Path outputFile = outputDirectory.resolve(binaryResourceName(tiktokenFilename));
+            try (var out = new BufferedOutputStream(Files.newOutputStream(outputFile))) {
+                vocabulary.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the resource holding the binary form of the vocabulary loaded from
+     * the given {@code .tiktoken} resource.
+     *
+     * @param tiktokenFilename the name of the {@code .tiktoken} resource
+     * @return the name of the binary vocabulary resource
+     */
+    static String binaryResourceName(String tiktokenFilename) {
+        return tiktokenFilename.replaceFirst("\\.tiktoken$", "") + ".tkv";
+    }
+}
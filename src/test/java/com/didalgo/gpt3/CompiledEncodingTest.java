@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledEncodingTest {
+
+    private final Encoding encoding = customEncoding();
+
+    @Test
+    void of_gives_same_compiled_encoding_to_all_tokenizers() {
+        var compiled = CompiledEncoding.of(encoding);
+        assertSame(compiled, CompiledEncoding.of(encoding));
+        assertSame(encoding.pattern(), compiled.pattern());
+        assertSame(compiled, new GPT3Tokenizer(encoding).getCompiledEncoding());
+        assertEquals(3, compiled.vocabulary().size());
+        assertEquals("abab<|end|>", new GPT3Tokenizer(compiled).decode(List.of(2, 0, 1, 3)));
+    }
+
+    @Test
+    void of_builds_compiled_encoding_anew_after_unload() {
+        var compiled = CompiledEncoding.of(encoding);
+        long rebuildCount = CompiledEncoding.rebuildCount();
+
+        CompiledEncoding.unload(encoding);
+        var rebuilt = CompiledEncoding.of(encoding);
+        assertNotSame(compiled, rebuilt);
+        assertSame(rebuilt, CompiledEncoding.of(encoding));
+        assertEquals(rebuildCount, CompiledEncoding.rebuildCount());
+    }
+
+    @Test
+    void unload_makes_compiled_encoding_collectable() throws InterruptedException {
+        var compiled = new WeakReference<>(CompiledEncoding.of(encoding));
+        CompiledEncoding.unload(encoding);
+        assertTrue(isCollected(compiled));
+    }
+
+    @Test
+    void unreferenced_encoding_is_collectable_with_its_compiled_form() throws InterruptedException {
+        var encoding = new WeakReference<>(customEncoding());
+        var compiled = new WeakReference<>(CompiledEncoding.of(encoding.get()));
+        assertTrue(isCollected(encoding));
+        CompiledEncoding.of(this.encoding); // expunges the collected encodings
+        assertTrue(isCollected(compiled));
+    }
+
+    @Test
+    void setRetention_applies_to_retained_compiled_encodings() {
+        var compiled = CompiledEncoding.of(encoding);
+        try {
+            CompiledEncoding.setRetention(CompiledEncoding.Retention.SOFT);
+            assertEquals(CompiledEncoding.Retention.SOFT, CompiledEncoding.getRetention());
+            assertSame(compiled, CompiledEncoding.of(encoding));
+        } finally {
+            CompiledEncoding.setRetention(CompiledEncoding.Retention.STRONG);
+        }
+        assertSame(compiled, CompiledEncoding.of(encoding));
+    }
+
+    @Test
+    void compileAll_compiles_encodings_of_given_names() {
+        assertEquals(2, CompiledEncoding.compileAll(" r50k_base, P50K_EDIT ,,"));
+        assertSame(Encoding.P50K_EDIT.pattern(), CompiledEncoding.of(Encoding.P50K_EDIT).pattern());
+    }
+
+    @Test
+    void compileAll_skips_unknown_names() {
+        assertEquals(1, CompiledEncoding.compileAll("unknown, r50k_base,cl100k_bas"));
+        assertEquals(0, CompiledEncoding.compileAll(",nope,"));
+    }
+
+    @Test
+    void model_types_of_same_encoding_share_compiled_encoding() {
+        var compiled = ModelType.GPT_4.getTokenizer().getCompiledEncoding();
+        assertSame(compiled, ModelType.GPT_3_5_TURBO.getTokenizer().getCompiledEncoding());
+        assertSame(CompiledEncoding.of(Encoding.CL100K_BASE), compiled);
+    }
+
+    @Test
+    void model_type_tokenizer_is_rebuilt_without_count_after_unload() throws InterruptedException {
+        var model = ModelType.TEXT_DAVINCI_EDIT_001;
+        var compiled = new WeakReference<>(model.getTokenizer().getCompiledEncoding());
+        long rebuildCount = CompiledEncoding.rebuildCount();
+
+        CompiledEncoding.unload(model.getEncoding());
+        assertTrue(isCollected(compiled));
+        assertEquals(List.of(31373, 995), model.getTokenizer().encode("hello world"));
+        assertEquals(rebuildCount, CompiledEncoding.rebuildCount());
+    }
+
+    @Test
+    void model_type_tokenizer_is_rebuilt_with_count_after_soft_drop() throws InterruptedException {
+        var model = ModelType.TEXT_DAVINCI_EDIT_001;
+        try {
+            CompiledEncoding.setRetention(CompiledEncoding.Retention.SOFT);
+            var compiled = new WeakReference<>(model.getTokenizer().getCompiledEncoding());
+            assertSame(compiled.get(), ModelType.CODE_DAVINCI_EDIT_001.getTokenizer().getCompiledEncoding());
+            long rebuildCount = CompiledEncoding.rebuildCount();
+
+            CompiledEncoding.clearSoftReferences();
+            assertTrue(isCollected(compiled));
+            assertEquals(List.of(31373, 995), model.getTokenizer().encode("hello world"));
+            assertEquals(rebuildCount + 1, CompiledEncoding.rebuildCount());
+        } finally {
+            CompiledEncoding.setRetention(CompiledEncoding.Retention.STRONG);
+        }
+    }
+
+    private static Encoding customEncoding() {
+        return new Encoding.Of(
+                "custom",
+                Map.of(ByteSequence.from("a"), 0, ByteSequence.from("b"), 1, ByteSequence.from("ab"), 2),
+                Map.of("<|end|>", 3),
+                Pattern.compile("\\S+|\\s+"));
+    }
+
+    private static boolean isCollected(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return reference.get() == null;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncodingTest {
+
+    private static final String TEXT = "Hello, world! <|endoftext|> Zażółć gęślą jaźń 😀";
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] tiktokenResource() throws IOException {
+        try (InputStream in = Encoding.class.getResourceAsStream("r50k_base.tiktoken")) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] binaryVocabulary(byte[] tiktoken) throws IOException {
+        var out = new ByteArrayOutputStream();
+        Vocabulary.readFrom(ByteBuffer.wrap(tiktoken)).writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void assertEncodesLikeR50k(Encoding encoding) {
+        var expected = new GPT3Tokenizer(Encoding.R50K_BASE);
+        var tokenizer = new GPT3Tokenizer(encoding);
+        assertEquals(expected.encode(TEXT, true), tokenizer.encode(TEXT, true));
+        assertEquals(TEXT, tokenizer.decode(tokenizer.encode(TEXT, true)));
+        assertEquals(Encoding.R50K_BASE.mergeableRanks().size(), encoding.mergeableRanks().size());
+    }
+
+    @Test
+    void load_gives_encoding_from_tiktoken_file() throws IOException {
+        Path file = Files.write(tempDir.resolve("custom.tiktoken"), tiktokenResource());
+        var encoding = Encoding.load(file, Encoding.R50K_BASE.specialTokens(), Encoding.R50K_BASE.pattern());
+        assertEncodesLikeR50k(encoding);
+        assertEquals("custom.tiktoken", ((Encoding.Loaded) encoding).name());
+    }
+
+    @Test
+    void load_gives_encoding_from_binary_file() throws IOException {
+        Path file = Files.write(tempDir.resolve("custom.tkv"), binaryVocabulary(tiktokenResource()));
+        assertEncodesLikeR50k(Encoding.load(file, Encoding.R50K_BASE.specialTokens(), Encoding.R50K_BASE.pattern()));
+    }
+
+    @Test
+    void load_gives_encoding_from_stream_or_buffer_in_any_format() throws IOException {
+        byte[] tiktoken = tiktokenResource(), binary = binaryVocabulary(tiktoken);
+        var specialTokens = Encoding.R50K_BASE.specialTokens();
+        var pattern = Encoding.R50K_BASE.pattern();
+
+        assertEncodesLikeR50k(Encoding.load(new ByteArrayInputStream(tiktoken), specialTokens, pattern));
+        assertEncodesLikeR50k(Encoding.load(new ByteArrayInputStream(binary), specialTokens, pattern));
+        assertEncodesLikeR50k(Encoding.load(ByteBuffer.allocateDirect(binary.length).put(binary).flip(), specialTokens, pattern));
+        assertEncodesLikeR50k(Encoding.load(ByteBuffer.wrap(tiktoken), specialTokens, pattern));
+    }
+
+    @Test
+    void load_rejects_malformed_vocabulary() {
+        var data = "YQ== 0\nnot a vocabulary\n".getBytes();
+        assertThrows(IOException.class, () -> Encoding.load(new ByteArrayInputStream(data), Map.of(), Encoding.R50K_BASE.pattern()));
+    }
+}
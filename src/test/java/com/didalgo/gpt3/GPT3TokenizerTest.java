@@ -1,11 +1,23 @@
 package com.didalgo.gpt3;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.converter.ConvertWith;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.*;
 
 class GPT3TokenizerTest {
@@ -154,6 +166,214 @@ class GPT3TokenizerTest {
                                                      @ConvertWith(ListConverter.class) List<Integer> tokens) {
         var enc = new GPT3Tokenizer(Encoding.forModel(model));
         assertEquals(tokens, enc.encode(text));
+        assertArrayEquals(tokens.stream().mapToInt(Integer::intValue).toArray(), enc.encodeToArray(text));
+        assertEquals(tokens.size(), enc.countTokens(text));
         assertEquals(text, enc.decode(tokens));
     }
-}
\ No newline at end of file
+
+    @ParameterizedTest
+    @CsvSource({
+            "r50k_base, base64, 6119, 632521948",
+            "r50k_base, spaces, 3000, 804649729",
+            "r50k_base, cjk, 1400, -741380095",
+            "cl100k_base, base64, 5685, 1641886709",
+            "cl100k_base, spaces, 24, 736129815",
+            "cl100k_base, cjk, 760, -308907391",
+            "o200k_base, base64, 5405, 1327930923",
+            "o200k_base, spaces, 24, 67559808",
+            "o200k_base, cjk, 320, -1290852735",
+    })
+    void can_encode_long_pieces_same_as_linear_merge(String encodingName, String kind, int tokenCount, int tokensHashCode) {
+        var text = switch (kind) {
+            case "base64" -> {
+                var bytes = new byte[6000];
+                new Random(1234).nextBytes(bytes);
+                yield Base64.getEncoder().encodeToString(bytes);
+            }
+            case "spaces" -> " ".repeat(3000);
+            case "cjk" -> "统一码联盟负责维护统一码标准".repeat(40);
+            default -> throw new IllegalArgumentException(kind);
+        };
+        var enc = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var tokens = enc.encode(text);
+        assertEquals(tokenCount, tokens.size());
+        assertEquals(tokenCount, enc.countTokens(text));
+        assertEquals(tokensHashCode, tokens.hashCode());
+        assertEquals(text, enc.decode(tokens));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "r50k_base", "p50k_base", "cl100k_base", "o200k_base" })
+    void can_encode_unpaired_surrogates_as_question_marks(String encodingName) {
+        var enc = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var text = "a\uD800b \uDC00\uD83D\uDE00 x\uD83D";
+        assertEquals("a?b ?\uD83D\uDE00 x?", enc.decode(enc.encode(text)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "r50k_base", "p50k_base", "cl100k_base", "o200k_base" })
+    void can_encode_with_piece_cache_same_as_without(String encodingName) {
+        var text = ("The Cathedral and the Bazaar: über-naïve programmers' unmaintainable 統一碼 code, "
+                + "var aVeryLongIdentifierName = anotherVeryLongIdentifierName;\n").repeat(20);
+        var cache = new PieceCache(1000);
+        var enc = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var cachingEnc = new GPT3Tokenizer(Encoding.forName(encodingName), cache);
+
+        assertEquals(enc.encode(text), cachingEnc.encode(text));
+        assertEquals(enc.countTokens(text), cachingEnc.countTokens(text));
+        assertTrue(cache.stats().hitCount() > 0);
+        assertSame(cache, cachingEnc.getPieceCache().orElseThrow());
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'<|endoftext|>', '[100257]'",
+            "'Hello<|endoftext|>', '[9906, 100257]'",
+            "'<|fim_prefix|>a<|endoftext|>b', '[27, 91, 69, 318, 14301, 91, 29, 64, 100257, 65]'",
+            "'<|endoftext|><|endofprompt|>', '[100257, 100276]'",
+            "'<|endof<|endoftext|>', '[27, 91, 408, 1073, 100257]'",
+    })
+    void can_encode_allowed_special_tokens_only(String text, @ConvertWith(ListConverter.class) List<Integer> tokens) {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        var allowed = Set.of("<|endoftext|>", "<|endofprompt|>");
+        assertEquals(tokens, enc.encode(text, allowed));
+        assertEquals(tokens, enc.encode(text, allowed, Set.of()));
+        assertEquals(text, enc.decode(tokens));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'Hello <|endoftext|>', '<|endoftext|>'",
+            "'<|fim_prefix|>a<|endoftext|>b', '<|fim_prefix|>'",
+            "'a<|endofprompt|>b<|fim_suffix|>', '<|fim_suffix|>'",
+    })
+    void cannot_encode_disallowed_special_tokens(String text, String disallowed) {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        var allowed = Set.of("<|endofprompt|>");
+        var disallowedSpecial = new HashSet<>(enc.specialTokens());
+        disallowedSpecial.removeAll(allowed);
+
+        var e = assertThrows(IllegalArgumentException.class, () -> enc.encode(text, allowed, disallowedSpecial));
+        assertTrue(e.getMessage().contains(disallowed), e.getMessage());
+        assertEquals(enc.encode(text), enc.encode(text, Set.of(), Set.of()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "r50k_base", "cl100k_base", "o200k_base" })
+    void can_decode_token_range_into_byte_and_char_sinks(String encodingName) throws IOException {
+        var enc = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var text = "Zażółć gęślą jaźń 😀🚀 <|endoftext|> " + "The quick brown fox. ".repeat(500);
+        int[] textTokens = enc.encodeToArray(text, enc.specialTokens());
+        int[] tokens = new int[textTokens.length + 2];
+        System.arraycopy(textTokens, 0, tokens, 1, textTokens.length);
+        int from = 1, to = tokens.length - 1;
+        var expected = enc.decode(enc.encode(text, enc.specialTokens()));
+        byte[] expectedBytes = expected.getBytes(UTF_8);
+
+        assertEquals(expected, enc.decode(tokens, from, to));
+        assertArrayEquals(expectedBytes, enc.decodeBytes(tokens, from, to));
+        assertArrayEquals(expectedBytes, enc.decodeBytes(enc.encode(text, enc.specialTokens())));
+
+        for (var buffer : List.of(ByteBuffer.allocate(expectedBytes.length + 1), ByteBuffer.allocateDirect(expectedBytes.length))) {
+            assertEquals(expectedBytes.length, enc.decodeBytes(tokens, from, to, buffer));
+            assertEquals(ByteBuffer.wrap(expectedBytes), buffer.flip());
+        }
+        var out = new ByteArrayOutputStream();
+        enc.decodeBytes(tokens, from, to, out);
+        assertArrayEquals(expectedBytes, out.toByteArray());
+
+        var chars = CharBuffer.allocate(expected.length());
+        enc.decode(tokens, from, to, chars);
+        assertEquals(expected, chars.flip().toString());
+        var sb = new StringBuilder("> ");
+        enc.decode(tokens, from, to, sb);
+        assertEquals("> " + expected, sb.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 5, 17 })
+    void can_decode_malformed_bytes_into_char_sink_same_as_into_string(int seed) throws IOException {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        var random = new Random(seed);
+        int[] tokens = random.ints(20_000, 0, 256).toArray();
+
+        var sb = new StringBuilder();
+        enc.decode(tokens, 0, tokens.length, sb);
+        assertEquals(enc.decode(tokens), sb.toString());
+    }
+
+    @Test
+    void can_decode_text_longer_than_chunk_into_char_sinks() throws IOException {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        var text = "Zażółć gęślą jaźń 😀 統一碼 <|endoftext|> ".repeat(1000);
+        int[] tokens = enc.encode(text, true).stream().mapToInt(Integer::intValue).toArray();
+
+        var sb = new StringBuilder();
+        enc.decode(tokens, 0, tokens.length, sb);
+        assertEquals(text, sb.toString());
+        var chars = CharBuffer.allocate(text.length() * 2);
+        enc.decode(tokens, 0, tokens.length, chars);
+        assertEquals(text, chars.flip().toString());
+        assertThrows(BufferOverflowException.class, () -> enc.decode(tokens, 0, tokens.length, CharBuffer.allocate(text.length() - 1)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { -1, 100_256, Integer.MAX_VALUE })
+    void cannot_decode_unknown_tokens_into_sinks(int token) {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        int[] tokens = { 9906, token };
+        var buffer = ByteBuffer.allocate(100);
+        var out = new ByteArrayOutputStream();
+
+        assertThrows(IllegalArgumentException.class, () -> enc.decode(tokens));
+        assertThrows(IllegalArgumentException.class, () -> enc.decodeBytes(tokens, 0, 2, buffer));
+        assertThrows(IllegalArgumentException.class, () -> enc.decodeBytes(tokens, 0, 2, out));
+        assertThrows(IllegalArgumentException.class, () -> enc.decode(tokens, 0, 2, new StringBuilder()));
+        assertEquals(0, buffer.position());
+        assertEquals(0, out.size());
+        assertEquals("Hello", enc.decode(tokens, 0, 1));
+        assertThrows(BufferOverflowException.class, () -> enc.decodeBytes(tokens, 0, 1, ByteBuffer.allocate(4)));
+        assertThrows(IndexOutOfBoundsException.class, () -> enc.decodeBytes(tokens, 1, 3));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "r50k_base", "p50k_base", "cl100k_base", "o200k_base" })
+    void can_encode_with_offsets_of_each_token(String encodingName) {
+        var enc = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var text = "Hello <|endoftext|>, Zażółć gęślą jaźń! 😀🚀 x\uD83D y " + "statistically ".repeat(10) + "統一碼  \n\n\tend";
+        var result = enc.encodeWithOffsets(text, enc.specialTokens());
+
+        assertArrayEquals(enc.encodeToArray(text, enc.specialTokens()), result.tokens());
+        assertEquals(result.size(), result.starts().length);
+        assertEquals(result.size(), result.ends().length);
+        assertEquals(0, result.starts()[0]);
+        assertEquals(text.length(), result.ends()[result.size() - 1]);
+        for (int i = 0; i < result.size(); i++) {
+            int start = result.starts()[i], end = result.ends()[i];
+            assertTrue(start < end, "token " + i);
+            if (i > 0)
+                assertTrue(start >= result.starts()[i - 1] && start <= result.ends()[i - 1], "token " + i);
+
+            // Tokens of whole characters decode to their own range of text
+            var token = List.of(result.tokens()[i]);
+            if (!enc.decode(token).contains("\uFFFD"))
+                assertArrayEquals(text.substring(start, end).getBytes(UTF_8), enc.decodeBytes(token), "token " + i);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'<|endoftext|>', '0, 13'",
+            "'a<|endoftext|>b', '0, 1, 1, 14, 14, 15'",
+            "'😀', '0, 2, 0, 2'",
+            "'x ł', '0, 1, 1, 3'",
+    })
+    void can_encode_with_offsets_of_special_and_split_characters(String text, String offsets) {
+        var enc = new GPT3Tokenizer(Encoding.forName("cl100k_base"));
+        var result = enc.encodeWithOffsets(text, enc.specialTokens());
+        var actual = new StringBuilder();
+        for (int i = 0; i < result.size(); i++)
+            actual.append((i == 0)? "" : ", ").append(result.starts()[i]).append(", ").append(result.ends()[i]);
+        assertEquals(offsets, actual.toString());
+    }
+}
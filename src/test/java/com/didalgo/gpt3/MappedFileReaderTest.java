@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedFileReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 4, 5, 6, 7, 13, 1 << 20 })
+    void read_decodes_sequences_straddling_segments(int segmentSize) throws IOException {
+        var text = "ab ł日😀 ".repeat(100);
+        var file = Files.writeString(tempDir.resolve("text.txt"), text);
+
+        var progress = new ArrayList<Long>();
+        try (var in = new MappedFileReader(file, segmentSize, progress::add)) {
+            var result = new StringBuilder();
+            char[] buf = new char[7];
+            for (int count; (count = in.read(buf, 0, buf.length)) >= 0; )
+                result.append(buf, 0, count);
+            assertEquals(text, result.toString());
+        }
+        assertEquals(Files.size(file), progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++)
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+    }
+
+    @Test
+    void read_replaces_malformed_input() throws IOException {
+        byte[] bytes = { 'a', (byte) 0xC5, 'b', (byte) 0xF0, (byte) 0x9F };
+        var file = Files.write(tempDir.resolve("malformed.txt"), bytes);
+        for (int segmentSize : List.of(4, 5, 100)) {
+            try (var in = new MappedFileReader(file, segmentSize, bytesRead -> { })) {
+                char[] buf = new char[10];
+                var result = new StringBuilder();
+                for (int count; (count = in.read(buf, 0, buf.length)) >= 0; )
+                    result.append(buf, 0, count);
+                assertEquals(new String(bytes, UTF_8), result.toString());
+            }
+        }
+    }
+
+    @Test
+    void read_gives_end_of_empty_file() throws IOException {
+        var file = Files.write(tempDir.resolve("empty.txt"), new byte[0]);
+        try (var in = new MappedFileReader(file, 4, bytesRead -> { })) {
+            assertEquals(-1, in.read(new char[10], 0, 10));
+        }
+    }
+}
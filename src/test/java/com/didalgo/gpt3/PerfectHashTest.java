@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PerfectHashTest {
+
+    private byte[] bytes;
+    private int[] offsets;
+
+    private void keys(int count) {
+        var buf = new ByteArrayOutputStream();
+        offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            buf.writeBytes(("key" + Integer.toString(i, 7)).getBytes(UTF_8));
+            offsets[i + 1] = buf.size();
+        }
+        bytes = buf.toByteArray();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 10, 1000, 100000 })
+    void build_gives_minimal_perfect_hash_function(int count) {
+        keys(count);
+        var hash = PerfectHash.build(bytes, offsets);
+
+        assertEquals(count, hash.size());
+        var positions = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            int position = hash.position(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+            assertTrue(position >= 0 && position < count, "position out of range: " + position);
+            assertFalse(positions.get(position), "duplicate position: " + position);
+            positions.set(position);
+        }
+    }
+
+    @Test
+    void readFrom_gives_function_written_by_writeTo() throws IOException {
+        keys(5000);
+        var hash = PerfectHash.build(bytes, offsets);
+        var buffer = ByteBuffer.allocate(hash.byteSize());
+        hash.writeTo(buffer);
+        var copy = PerfectHash.readFrom(buffer.flip());
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(hash.size(), copy.size());
+        for (int i = 0; i < 5000; i++) {
+            int length = offsets[i + 1] - offsets[i];
+            assertEquals(hash.position(bytes, offsets[i], length), copy.position(bytes, offsets[i], length));
+        }
+    }
+
+    @Test
+    void readFrom_rejects_other_data() {
+        var buffer = ByteBuffer.allocate(64);
+        buffer.putInt(8, 10).putInt(12, 5).putInt(16, 1);
+        assertThrows(IOException.class, () -> PerfectHash.readFrom(buffer));
+    }
+
+    @Test
+    void build_rejects_duplicate_keys() {
+        byte[] duplicates = "abab".getBytes(UTF_8);
+        assertThrows(IllegalArgumentException.class, () -> PerfectHash.build(duplicates, new int[] { 0, 2, 4 }));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PieceCacheTest {
+
+    @Test
+    void get_returns_tokens_put_under_same_bytes() {
+        var cache = new PieceCache(100);
+        byte[] buf = "xx hello xx".getBytes(UTF_8);
+        cache.put(buf, 2, 6, new int[] { 1, 2 });
+
+        assertArrayEquals(new int[] { 1, 2 }, cache.get(" hello".getBytes(UTF_8), 0, 6));
+        assertNull(cache.get(" hell".getBytes(UTF_8), 0, 5));
+        assertEquals(1, cache.size());
+        assertEquals(new PieceCache.Stats(1, 1, 0), cache.stats());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 10, 1000, 10000 })
+    void size_never_exceeds_maximum_size(int maximumSize) {
+        var cache = new PieceCache(maximumSize);
+        for (int i = 0; i < 5 * maximumSize + 100; i++) {
+            byte[] piece = Integer.toString(i).getBytes(UTF_8);
+            cache.put(piece, 0, piece.length, new int[] { i });
+            assertArrayEquals(new int[] { i }, cache.get(piece, 0, piece.length));
+        }
+        assertTrue(cache.size() <= maximumSize);
+        assertEquals(cache.stats().evictionCount(), 5L * maximumSize + 100 - cache.size());
+    }
+
+    @Test
+    void recently_used_pieces_survive_eviction() {
+        var cache = new PieceCache(16);
+        byte[] hot = "hot".getBytes(UTF_8);
+        cache.put(hot, 0, hot.length, new int[] { -1 });
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(cache.get(hot, 0, hot.length));
+            byte[] cold = ("cold" + i).getBytes(UTF_8);
+            cache.put(cold, 0, cold.length, new int[] { i });
+        }
+        assertArrayEquals(new int[] { -1 }, cache.get(hot, 0, hot.length));
+    }
+
+    @Test
+    void clear_removes_all_pieces() {
+        var cache = new PieceCache(100);
+        for (int i = 0; i < 50; i++) {
+            byte[] piece = ("piece" + i).getBytes(UTF_8);
+            cache.put(piece, 0, piece.length, new int[] { i });
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("piece1".getBytes(UTF_8), 0, 6));
+    }
+}
@@ -0,0 +1,71 @@
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreTokenizerTest {
+
+    private static final String[] FRAGMENTS = {
+            "a", "B", "z", "'", "s", "S", "ſ", "t", "T", "r", "e", "v", "l", "m", "d", "'s", "'S", "'ll", "'LL", "'Re",
+            " ", "  ", "\n", "\r", "\t", "\u000B", "\f", "\u0085", " ", " ", "　",
+            "1", "٣", "Ⅻ", "½", "!", "/", "?", "-", "_", "é", "́", "ः", "ǅ", "ʰ", "中", "😀",
+            "\uD800", "\uDC00", "𝐀", "𝟘", "İ", "ı", "K", "À", "ß"
+    };
+
+    @ParameterizedTest
+    @ValueSource(strings = {"r50k_base", "p50k_base", "p50k_edit", "cl100k_base", "o200k_base"})
+    void split_gives_same_pieces_as_regex_on_fuzzed_input(String encodingName) {
+        var encoding = Encoding.forName(encodingName);
+        var preTokenizer = PreTokenizer.forPattern(encoding.pattern());
+        assertFalse(preTokenizer instanceof PreTokenizer.Of, "dedicated scanner expected");
+
+        var random = new Random(encodingName.hashCode());
+        for (int i = 0; i < 20_000; i++) {
+            var text = randomText(random);
+            var expected = regexPieces(encoding.pattern(), text);
+            var actual = new ArrayList<String>();
+            preTokenizer.split(text, 0, text.length(), (t, start, end) -> actual.add(t.subSequence(start, end).toString()));
+            assertEquals(expected, actual, "Pieces of: " + text);
+        }
+    }
+
+    @Test
+    void forPattern_gives_regex_pre_tokenizer_for_custom_pattern() {
+        var pattern = Pattern.compile("\\S+|\\s+");
+        var preTokenizer = PreTokenizer.forPattern(pattern);
+        assertEquals(new PreTokenizer.Of(pattern), preTokenizer);
+
+        var pieces = new ArrayList<String>();
+        preTokenizer.split("a bc  d", 2, 7, (t, start, end) -> pieces.add(t.subSequence(start, end).toString()));
+        assertEquals(List.of("bc", "  ", "d"), pieces);
+    }
+
+    private static String randomText(Random random) {
+        var text = new StringBuilder();
+        for (int n = random.nextInt(30); n > 0; n--) {
+            switch (random.nextInt(20)) {
+                case 0 -> text.appendCodePoint(random.nextInt(Character.MAX_CODE_POINT + 1));
+                case 1 -> text.append((char) random.nextInt(Character.MAX_VALUE + 1));
+                default -> text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+        }
+        return text.toString();
+    }
+
+    private static List<String> regexPieces(Pattern pattern, String text) {
+        var pieces = new ArrayList<String>();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find())
+            pieces.add(matcher.group());
+        return pieces;
+    }
+}
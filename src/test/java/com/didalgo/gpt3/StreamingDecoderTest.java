@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingDecoderTest {
+
+    private final GPT3Tokenizer tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Hello, world!",
+            "Zażółć gęślą jaźń",
+            "日本語のテキスト",
+            "Emoji 😀🚀🎉 and 𝔘𝔫𝔦𝔠𝔬𝔡𝔢",
+            "<|endoftext|>ÿþ€"
+    })
+    void decode_emits_complete_characters_of_each_token(String text) {
+        var decoder = tokenizer.newStreamingDecoder();
+        var result = new StringBuilder();
+        for (int token : tokenizer.encodeToArray(text, tokenizer.specialTokens())) {
+            String chars = decoder.decode(token);
+            assertFalse(chars.contains("�"), chars);
+            result.append(chars);
+        }
+        assertEquals(0, decoder.pendingBytes());
+        assertEquals("", decoder.flush());
+        assertEquals(text, result.toString());
+    }
+
+    @Test
+    void decode_holds_back_incomplete_sequence() {
+        var decoder = tokenizer.newStreamingDecoder();
+        int[] tokens = byteTokens("😀".getBytes(UTF_8));
+
+        assertEquals("", decoder.decode(tokens[0]));
+        assertEquals("", decoder.decode(tokens[1], tokens[2]));
+        assertEquals(3, decoder.pendingBytes());
+        assertEquals("😀", decoder.decode(List.of(tokens[3])));
+        assertEquals(0, decoder.pendingBytes());
+
+        decoder.decode(tokens[0]);
+        assertEquals("�", decoder.flush());
+        decoder.decode(tokens[0]);
+        decoder.reset();
+        assertEquals("a", decoder.decode(tokenizer.encodeToArray("a")));
+    }
+
+    @Test
+    void decode_gives_same_text_as_decoding_all_tokens_at_once() {
+        var random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            var tokens = new ArrayList<Integer>();
+            for (int i = random.nextInt(50); i >= 0; i--)
+                tokens.add(random.nextInt(2) == 0? random.nextInt(256) : random.nextInt(100_000));
+
+            var decoder = tokenizer.newStreamingDecoder();
+            var result = new StringBuilder();
+            for (int i = 0; i < tokens.size(); ) {
+                int batch = Math.min(tokens.size() - i, 1 + random.nextInt(3));
+                result.append((batch == 1)? decoder.decode(tokens.get(i)) : decoder.decode(tokens.subList(i, i + batch)));
+                i += batch;
+            }
+            result.append(decoder.flush());
+            assertEquals(tokenizer.decode(tokens), result.toString(), "tokens: " + tokens);
+        }
+    }
+
+    @Test
+    void decode_rejects_unknown_tokens_without_consuming_any() {
+        var decoder = tokenizer.newStreamingDecoder();
+        int[] tokens = byteTokens("😀".getBytes(UTF_8));
+        decoder.decode(tokens[0]);
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(-1));
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(tokens[1], Integer.MAX_VALUE));
+        assertEquals(1, decoder.pendingBytes());
+    }
+
+    private int[] byteTokens(byte[] bytes) {
+        var vocabulary = tokenizer.getCompiledEncoding().vocabulary();
+        int[] tokens = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            tokens[i] = vocabulary.rank(bytes, i, 1);
+        return tokens;
+    }
+}
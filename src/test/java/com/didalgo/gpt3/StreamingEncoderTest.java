@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingEncoderTest {
+
+    private static final String ALPHABET = "aZ ł日😀'sllve.,!?0123456789\n\r\t    -_<|>";
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @CsvSource({
+            "r50k_base, 2",
+            "r50k_base, 7",
+            "p50k_base, 16",
+            "cl100k_base, 2",
+            "cl100k_base, 3",
+            "cl100k_base, 64",
+            "o200k_base, 5",
+            "o200k_base, 1000",
+    })
+    void encode_gives_same_tokens_as_encoding_whole_text(String encodingName, int windowSize) throws IOException {
+        var tokenizer = new GPT3Tokenizer(Encoding.forName(encodingName));
+        var encoder = tokenizer.newStreamingEncoder(windowSize);
+        var random = new Random(windowSize);
+        for (int round = 0; round < 50; round++) {
+            var text = randomText(random, random.nextInt(400));
+            var tokens = new TokenArray();
+            encoder.encode(new StringReader(text), tokens);
+            assertArrayEquals(tokenizer.encodeToArray(text), tokens.toArray(), text);
+        }
+    }
+
+    @Test
+    void encode_reads_utf8_from_streams_and_channels() throws IOException {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        var encoder = tokenizer.newStreamingEncoder(10);
+        var text = "Zażółć gęślą jaźń 😀🚀, we've   got\n\n  it!  ".repeat(50);
+        int[] expected = tokenizer.encodeToArray(text);
+
+        var tokens = new TokenArray();
+        encoder.encode(new ByteArrayInputStream(text.getBytes(UTF_8)), tokens);
+        assertArrayEquals(expected, tokens.toArray());
+
+        tokens.clear();
+        encoder.encode(Channels.newChannel(new ByteArrayInputStream(text.getBytes(UTF_8))), tokens);
+        assertArrayEquals(expected, tokens.toArray());
+    }
+
+    @Test
+    void encode_reads_memory_mapped_files() throws IOException {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        var encoder = tokenizer.newStreamingEncoder(100);
+        var text = "Zażółć gęślą jaźń 😀🚀, we've   got\n\n  it!  ".repeat(50);
+        var file = Files.writeString(tempDir.resolve("text.txt"), text);
+        int[] expected = tokenizer.encodeToArray(text);
+
+        var tokens = new TokenArray();
+        var bytesRead = new AtomicLong();
+        encoder.encode(file, tokens, bytesRead::set);
+        assertArrayEquals(expected, tokens.toArray());
+        assertEquals(Files.size(file), bytesRead.get());
+        assertEquals(expected.length, encoder.countTokens(file));
+
+        var tokenFile = tempDir.resolve("text.tokens");
+        assertEquals(expected.length, encoder.encodeToFile(file, tokenFile, progress -> { }));
+        var written = ByteBuffer.wrap(Files.readAllBytes(tokenFile)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int[] actual = new int[written.remaining()];
+        written.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void encode_grows_window_for_pieces_longer_than_window() throws IOException {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        var text = "a" + " ".repeat(1000) + "b" + "x".repeat(500) + "\n".repeat(300);
+        var tokens = new TokenArray();
+        tokenizer.newStreamingEncoder(8).encode(new StringReader(text), tokens);
+        assertArrayEquals(tokenizer.encodeToArray(text), tokens.toArray());
+    }
+
+    @Test
+    void tokens_iterates_over_tokens_of_consecutive_windows() {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        var text = "The quick brown fox jumps over the lazy dog. ".repeat(100);
+        var iterator = tokenizer.newStreamingEncoder(32).tokens(new StringReader(text));
+
+        var tokens = new TokenArray();
+        iterator.forEachRemaining((int token) -> tokens.add(token));
+        assertArrayEquals(tokenizer.encodeToArray(text), tokens.toArray());
+        assertFalse(iterator.hasNext());
+        assertFalse(tokenizer.newStreamingEncoder().tokens(new StringReader("")).hasNext());
+    }
+
+    @Test
+    void newStreamingEncoder_rejects_too_small_window() {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        assertThrows(IllegalArgumentException.class, () -> tokenizer.newStreamingEncoder(1));
+        assertEquals(StreamingEncoder.DEFAULT_WINDOW_SIZE, tokenizer.newStreamingEncoder().windowSize());
+    }
+
+    private static String randomText(Random random, int length) {
+        var text = new StringBuilder();
+        while (text.length() < length) {
+            int index = random.nextInt(ALPHABET.length());
+            if (Character.isSurrogate(ALPHABET.charAt(index)))
+                text.append("😀");
+            else
+                text.append(ALPHABET.charAt(index));
+        }
+        return text.toString();
+    }
+}
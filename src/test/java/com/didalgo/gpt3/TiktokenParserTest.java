@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TiktokenParserTest {
+
+    private static Vocabulary parse(String text) {
+        return TiktokenParser.parse(text.getBytes(US_ASCII));
+    }
+
+    @Test
+    void parse_gives_same_ranks_as_line_by_line_decoding() throws IOException {
+        byte[] data;
+        try (InputStream in = Vocabulary.class.getResourceAsStream("cl100k_base.tiktoken")) {
+            data = in.readAllBytes();
+        }
+        var expected = new HashMap<ByteSequence, Integer>();
+        for (String line : new String(data, US_ASCII).split("\n")) {
+            int space = line.indexOf(' ');
+            expected.put(ByteSequence.of(Base64.getDecoder().decode(line.substring(0, space))), Integer.parseInt(line.substring(space + 1)));
+        }
+
+        assertEquals(expected, TiktokenParser.parse(data).asMap());
+    }
+
+    @Test
+    void parse_skips_empty_lines_and_carriage_returns() {
+        var vocabulary = parse("\nYQ== 0\r\n\r\nYWI= 2\n\nIGFiYw== 5");
+        assertEquals(Map.of(
+                ByteSequence.from("a"), 0,
+                ByteSequence.from("ab"), 2,
+                ByteSequence.from(" abc"), 5
+        ), vocabulary.asMap());
+    }
+
+    @Test
+    void parse_accepts_empty_input() {
+        assertEquals(0, parse("").size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "YQ== 0\nYg== 0",
+            "YQ== 0\nYg== 1\nYQ== 2",
+            "YQ== 0\nYg==",
+            "YQ== 0\nYg== x",
+            "YQ== 0\n 1",
+            "YQ== 0\nYQ 1",
+            "YQ== 0\nY=Q= 1",
+            "YQ== 0\nYQ== -1",
+            "YQ== 0\nYQ== 99999999999",
+            "YQ== 0\n==== 1",
+    })
+    void parse_rejects_malformed_input(String text) {
+        assertThrows(IllegalArgumentException.class, () -> parse(text));
+    }
+
+    @Test
+    void parse_reports_first_error_in_input_order() {
+        var text = new StringBuilder();
+        for (int i = 0; i < 100_000; i++)
+            text.append(Base64.getEncoder().encodeToString(("token" + i).getBytes(UTF_8))).append(' ').append(i).append('\n');
+        text.append("bad line\n");
+        for (int i = 0; i < 100_000; i++)
+            text.append("worse line\n");
+
+        var e = assertThrows(IllegalArgumentException.class, () -> parse(text.toString()));
+        assertTrue(e.getMessage().endsWith(": bad line"), e.getMessage());
+    }
+}
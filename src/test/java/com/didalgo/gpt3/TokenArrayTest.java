@@ -0,0 +1,56 @@
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenArrayTest {
+
+    @Test
+    void add_grows_array_beyond_initial_capacity() {
+        var tokens = new TokenArray(0);
+        for (int i = 0; i < 100; i++)
+            tokens.add(i);
+
+        assertEquals(100, tokens.size());
+        assertEquals(0, tokens.get(0));
+        assertEquals(99, tokens.get(99));
+    }
+
+    @Test
+    void get_throws_when_index_out_of_range() {
+        var tokens = new TokenArray();
+        tokens.add(1);
+        assertThrows(IndexOutOfBoundsException.class, () -> tokens.get(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> tokens.get(-1));
+    }
+
+    @Test
+    void toArray_and_toList_give_tokens_in_order() {
+        var tokens = new TokenArray();
+        tokens.add(10903);
+        tokens.add(0);
+
+        assertArrayEquals(new int[] {10903, 0}, tokens.toArray());
+        assertEquals(List.of(10903, 0), tokens.toList());
+    }
+
+    @Test
+    void clear_removes_all_tokens() {
+        var tokens = new TokenArray();
+        tokens.add(1);
+        tokens.clear();
+        assertTrue(tokens.isEmpty());
+        assertArrayEquals(new int[0], tokens.toArray());
+    }
+
+    @Test
+    void encodeInto_gives_same_tokens_as_encode() {
+        var tokenizer = new GPT3Tokenizer(Encoding.CL100K_BASE);
+        var tokens = new TokenArray();
+        tokenizer.encodeInto("Stop what you're doing.", tokens);
+        assertEquals(tokenizer.encode("Stop what you're doing."), tokens.toList());
+    }
+}
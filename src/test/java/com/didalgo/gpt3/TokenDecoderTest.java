@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenDecoderTest {
+
+    private final Vocabulary vocabulary = Vocabulary.of(Map.of(
+            ByteSequence.from("a"), 0,
+            ByteSequence.from("b"), 1,
+            ByteSequence.from("ab"), 2,
+            ByteSequence.from(" abc"), 5
+    ));
+
+    @Test
+    void decode_gives_bytes_of_ordinary_and_special_tokens() {
+        var decoder = new TokenDecoder(vocabulary, Map.of("<|hole|>", 3, "<|end|>", 8));
+        byte[] bytes = decoder.decode(List.of(2, 3, 5, 8, 0, 0));
+        assertEquals("ab<|hole|> abc<|end|>aa", new String(bytes, UTF_8));
+        assertEquals(0, decoder.decode(List.of()).length);
+    }
+
+    @Test
+    void decode_gives_bytes_of_special_tokens_at_any_id() {
+        var decoder = new TokenDecoder(vocabulary, Map.of("<|hole|>", 4, "<|max|>", Integer.MAX_VALUE));
+        byte[] bytes = decoder.decode(List.of(5, 4, 1, Integer.MAX_VALUE, 2));
+        assertEquals(" abc<|hole|>b<|max|>ab", new String(bytes, UTF_8));
+    }
+
+    @Test
+    void decode_range_gives_bytes_of_ordinary_and_special_tokens() throws IOException {
+        var decoder = new TokenDecoder(vocabulary, Map.of("<|hole|>", 4, "<|max|>", Integer.MAX_VALUE));
+        int[] tokens = { 7, 5, 4, 1, Integer.MAX_VALUE, 2, 7 };
+        assertEquals(" abc<|hole|>b<|max|>ab", new String(decoder.decode(tokens, 1, 6), UTF_8));
+
+        var buffer = ByteBuffer.allocate(32);
+        assertEquals(18, decoder.decode(tokens, 2, 6, buffer));
+        assertEquals("<|hole|>b<|max|>ab", new String(buffer.array(), 0, buffer.position(), UTF_8));
+
+        var out = new ByteArrayOutputStream();
+        decoder.decode(tokens, 1, 5, out);
+        assertEquals(" abc<|hole|>b<|max|>", out.toString(UTF_8));
+    }
+
+    @Test
+    void decode_rejects_unknown_tokens() {
+        var decoder = new TokenDecoder(vocabulary, Map.of("<|end|>", 8));
+        for (int token : new int[] { -1, 3, 4, 6, 7, 9, Integer.MAX_VALUE })
+            assertThrows(IllegalArgumentException.class, () -> decoder.decode(List.of(0, token)), "token: " + token);
+    }
+
+    @Test
+    void constructor_rejects_special_tokens_with_taken_ids() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenDecoder(vocabulary, Map.of("<|end|>", 2)));
+        assertThrows(IllegalArgumentException.class, () -> new TokenDecoder(vocabulary, Map.of("<|end|>", 7, "<|eot|>", 7)));
+        assertThrows(IllegalArgumentException.class, () -> new TokenDecoder(vocabulary, Map.of("<|end|>", -1)));
+    }
+}
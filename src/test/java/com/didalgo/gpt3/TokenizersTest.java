@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2023 Mariusz Bernacki <consulting@didalgo.com>
+ * SPDX-License-Identifier: MIT
+ */
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenizersTest {
+
+    @Test
+    void preload_completes_when_encodings_are_compiled() {
+        var compiled = CompiledEncoding.of(Encoding.R50K_BASE);
+        Tokenizers.preload(EncodingType.R50K_BASE, EncodingType.P50K_BASE).join();
+        assertSame(compiled, CompiledEncoding.of(Encoding.R50K_BASE));
+        assertSame(CompiledEncoding.of(Encoding.P50K_BASE), ModelType.TEXT_DAVINCI_003.getTokenizer().getCompiledEncoding());
+    }
+
+    @Test
+    void preload_completes_exceptionally_if_loading_fails() {
+        var future = Tokenizers.preload(Runnable::run, EncodingType.R50K_BASE, null);
+        assertTrue(future.isCompletedExceptionally());
+        assertThrows(CompletionException.class, future::join);
+    }
+
+    @Test
+    void preloadAndWarmUp_completes_normally() {
+        var future = Tokenizers.preloadAndWarmUp(Runnable::run, EncodingType.R50K_BASE);
+        assertTrue(future.isDone());
+        assertDoesNotThrow(future::join);
+    }
+
+    @Test
+    void warmUp_runs_given_number_of_rounds() {
+        for (Encoding encoding : new Encoding[] { Encoding.CL100K_BASE, Encoding.O200K_BASE }) {
+            long oneRound = pieceCacheLookups(encoding, 1);
+            assertTrue(oneRound > 0);
+            assertEquals(3 * oneRound, pieceCacheLookups(encoding, 3));
+            assertEquals(0, pieceCacheLookups(encoding, 0));
+        }
+    }
+
+    private static long pieceCacheLookups(Encoding encoding, int rounds) {
+        var cache = new PieceCache(1000);
+        Tokenizers.warmUp(new GPT3Tokenizer(encoding, cache), rounds);
+        return cache.stats().hitCount() + cache.stats().missCount();
+    }
+}
@@ -0,0 +1,208 @@
+package com.didalgo.gpt3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class VocabularyTest {
+
+    private final Vocabulary vocabulary = Vocabulary.of(Map.of(
+            ByteSequence.from("a"), 0,
+            ByteSequence.from("b"), 1,
+            ByteSequence.from("ab"), 2,
+            ByteSequence.from(" abc"), 5
+    ));
+
+    @Test
+    void rank_gives_rank_of_byte_range_within_larger_array() {
+        byte[] buf = "xx abcyy".getBytes(UTF_8);
+        assertEquals(5, vocabulary.rank(buf, 2, 4));
+        assertEquals(2, vocabulary.rank(buf, 3, 2));
+        assertEquals(1, vocabulary.rank(buf, 4, 1));
+    }
+
+    @Test
+    void rank_gives_NO_RANK_for_unknown_byte_sequences() {
+        byte[] buf = "abc".getBytes(UTF_8);
+        assertEquals(Vocabulary.NO_RANK, vocabulary.rank(buf, 0, 3));
+        assertEquals(Vocabulary.NO_RANK, vocabulary.rank(buf, 2, 1));
+        assertEquals(Vocabulary.NO_RANK, vocabulary.rank(buf, 0, 0));
+    }
+
+    @Test
+    void rank_gives_rank_of_byte_sequences_of_any_length() {
+        var ranks = new HashMap<ByteSequence, Integer>();
+        for (int length = 1; length <= 40; length++) {
+            ranks.put(ByteSequence.from("x".repeat(length)), 2 * length);
+            ranks.put(ByteSequence.from("\u00e9".repeat(length)), 2 * length + 1);
+        }
+        var vocabulary = Vocabulary.of(ranks);
+        for (int length = 1; length <= 40; length++) {
+            byte[] buf = ("y" + "x".repeat(length) + "y").getBytes(UTF_8);
+            assertEquals(2 * length, vocabulary.rank(buf, 1, length));
+            assertEquals(Vocabulary.NO_RANK, vocabulary.rank(buf, 0, length));
+            byte[] utf8 = "\u00e9".repeat(length).getBytes(UTF_8);
+            assertEquals(2 * length + 1, vocabulary.rank(utf8, 0, utf8.length));
+            assertEquals((length % 2 == 0)? length + 1 : Vocabulary.NO_RANK, vocabulary.rank(utf8, 0, length));
+        }
+    }
+
+    @Test
+    void size_gives_number_of_byte_sequences() {
+        assertEquals(4, vocabulary.size());
+    }
+
+    @Test
+    void of_rejects_duplicate_ranks() {
+        var ranks = Map.of(ByteSequence.from("a"), 0, ByteSequence.from("b"), 0);
+        assertThrows(IllegalArgumentException.class, () -> Vocabulary.of(ranks));
+    }
+
+    @TempDir
+    Path tempDir;
+
+    private static void assertSameRanks(Vocabulary expected, Vocabulary actual) {
+        assertEquals(expected.size(), actual.size());
+        for (String text : new String[] { "a", "b", "ab", " abc", "c", "abc", "" }) {
+            byte[] buf = text.getBytes(UTF_8);
+            assertEquals(expected.rank(buf, 0, buf.length), actual.rank(buf, 0, buf.length), text);
+        }
+    }
+
+    @Test
+    void readFrom_gives_vocabulary_written_by_writeTo() throws IOException {
+        var out = new ByteArrayOutputStream();
+        vocabulary.writeTo(out);
+
+        assertSameRanks(vocabulary, Vocabulary.readFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertSameRanks(vocabulary, Vocabulary.readFrom(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    @Test
+    void load_reads_binary_file() throws IOException {
+        Path file = tempDir.resolve("vocabulary.tkv");
+        try (var out = Files.newOutputStream(file)) {
+            vocabulary.writeTo(out);
+        }
+        assertSameRanks(vocabulary, Vocabulary.load(file));
+    }
+
+    @Test
+    void load_reads_tiktoken_file() throws IOException {
+        Path file = tempDir.resolve("vocabulary.tiktoken");
+        Files.writeString(file, "YQ== 0\nYg== 1\nYWI= 2\nIGFiYw== 5\n");
+        assertSameRanks(vocabulary, Vocabulary.load(file));
+    }
+
+    @Test
+    void load_reads_tiktoken_file_starting_like_binary_file() throws IOException {
+        Path file = tempDir.resolve("vocabulary.tiktoken");
+        Files.writeString(file, "TKV1 0\nYQ== 1\n");
+        var vocabulary = Vocabulary.load(file);
+        assertEquals(2, vocabulary.size());
+        assertEquals(0, vocabulary.rank(Base64.getDecoder().decode("TKV1"), 0, 3));
+        assertEquals(1, vocabulary.rank(new byte[] { 'a' }, 0, 1));
+        assertEquals(2, Vocabulary.readFrom(ByteBuffer.wrap(Files.readAllBytes(file))).size());
+    }
+
+    @Test
+    void readFrom_reads_tiktoken_format() throws IOException {
+        byte[] data = "YQ== 0\nYg== 1\nYWI= 2\nIGFiYw== 5\n".getBytes(UTF_8);
+        assertSameRanks(vocabulary, Vocabulary.readFrom(new ByteArrayInputStream(data)));
+        assertSameRanks(vocabulary, Vocabulary.readFrom(ByteBuffer.wrap(data)));
+    }
+
+    @Test
+    void readFrom_rejects_malformed_data() throws IOException {
+        var out = new ByteArrayOutputStream();
+        vocabulary.writeTo(out);
+        byte[] data = out.toByteArray();
+
+        assertThrows(IOException.class, () -> Vocabulary.readFrom(ByteBuffer.wrap(new byte[64])));
+        assertThrows(IOException.class, () -> Vocabulary.readFrom(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 1))));
+        data[4] = 100; // rank count beyond the data
+        assertThrows(IOException.class, () -> Vocabulary.readFrom(ByteBuffer.wrap(data)));
+    }
+
+    @Test
+    void readFrom_rejects_maximum_rank_count() throws IOException {
+        var out = new ByteArrayOutputStream();
+        vocabulary.writeTo(out);
+        var data = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(4, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> Vocabulary.readFrom(data));
+    }
+
+    @Test
+    void vocabulary_of_encoding_backs_its_mergeable_ranks() {
+        var ranks = Encoding.R50K_BASE.mergeableRanks();
+        var r50k = Encoding.R50K_BASE.vocabulary();
+        assertSame(r50k, Vocabulary.of(ranks));
+        assertEquals(50256, r50k.size());
+        assertEquals(ranks.size(), r50k.size());
+        ranks.forEach((bytes, rank) -> {
+            byte[] buf = bytes.toByteArray();
+            assertEquals(rank, r50k.rank(buf, 0, buf.length));
+            assertEquals(bytes, r50k.bytes(rank));
+        });
+        assertTrue(r50k.memoryFootprint() > r50k.size());
+    }
+
+    @Test
+    void encodings_of_same_resource_share_vocabulary() {
+        var custom = new Encoding.Of("p50k_base.tiktoken", new HashMap<>(), Map.of(), Encoding.P50K_BASE.pattern());
+        assertSame(Encoding.P50K_BASE.mergeableRanks(), Encoding.P50K_EDIT.mergeableRanks());
+        assertSame(Encoding.P50K_BASE.vocabulary(), Encoding.P50K_EDIT.vocabulary());
+        assertSame(Encoding.P50K_BASE.vocabulary(), custom.vocabulary());
+        assertNotSame(Encoding.P50K_BASE.vocabulary(), Encoding.R50K_BASE.vocabulary());
+    }
+
+    @Test
+    void asMap_gives_view_of_vocabulary() {
+        var map = vocabulary.asMap();
+        assertEquals(Map.of(
+                ByteSequence.from("a"), 0,
+                ByteSequence.from("b"), 1,
+                ByteSequence.from("ab"), 2,
+                ByteSequence.from(" abc"), 5
+        ), map);
+        assertEquals(5, map.get(ByteSequence.from(" abc")));
+        assertNull(map.get(ByteSequence.from("abc")));
+        assertFalse(map.containsKey("a"));
+        assertThrows(UnsupportedOperationException.class, () -> map.put(ByteSequence.from("c"), 3));
+    }
+
+    @Test
+    void bytes_gives_byte_sequence_of_rank() {
+        assertEquals(ByteSequence.from(" abc"), vocabulary.bytes(5));
+        assertNull(vocabulary.bytes(3));
+        assertNull(vocabulary.bytes(6));
+        assertNull(vocabulary.bytes(-1));
+        assertTrue(vocabulary.contains(2));
+        assertFalse(vocabulary.contains(4));
+    }
+
+    @Test
+    void can_lookup_every_entry_of_bundled_vocabulary() {
+        var ranks = Encoding.CL100K_BASE.mergeableRanks();
+        var cl100k = Vocabulary.of(ranks);
+        ranks.forEach((bytes, rank) -> {
+            byte[] buf = bytes.toByteArray();
+            assertEquals(rank, cl100k.rank(buf, 0, buf.length));
+        });
+    }
+}